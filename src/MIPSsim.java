@@ -1,9 +1,19 @@
 /* On my honor, I have neither given nor received unauthorized aid on this assignment */
 
-import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.zip.GZIPInputStream;
 
 
 /**
@@ -20,6 +30,18 @@ public class MIPSsim {
 
 	private List<Instruction> data;
 
+	//已经解析到BREAK，之后的字都是数据
+	private boolean breaked = false;
+
+	//选择输出哪些周期
+	private TraceFilter filter = new TraceFilter();
+
+	//流水线轨迹并行格式化的线程数
+	private int formatThreads = 0;
+
+	//流水线的结构参数
+	private Machine machine = new Machine();
+
 	public MIPSsim(Integer beginAddress) {
 		this.address = beginAddress;
 		this.instructions = new ArrayList<>();
@@ -29,355 +51,1238 @@ public class MIPSsim {
 	public String disassemble(List<String> binary) {
 		this.instructions.clear();
 		this.data.clear();
-		Assembler.BREAK = false;
+		this.breaked = false;
 
 		StringBuilder builder = new StringBuilder();
 		for (String bin : binary) {
 			Instruction instruction = disassemble(bin);
-			builder.append(String.format("%s\t%d\t%s", bin, instruction.getAddress(), instruction.getInstruction())).append(System.lineSeparator());
+			builder.append(listing(bin, instruction));
 		}
 
 		return builder.toString();
 	}
 
+	private static String listing(String bin, Instruction instruction) {
+		return String.format("%s\t%d\t%s", bin, instruction.getAddress(), instruction.getInstruction()) + System.lineSeparator();
+	}
+
+	private static void listing(ChannelWriter writer, int word, Instruction instruction) {
+		writer.appendBinary(word).append('\t')
+				.appendDecimal(instruction.getAddress()).append('\t')
+				.append(instruction.getInstruction()).append(System.lineSeparator());
+	}
+
+	/**
+	 * 并行反汇编，结果与{@link #disassemble(List)}相同
+	 * <p>
+	 * 只有第一条BREAK的位置是顺序依赖：先扫描出BREAK，再把指令区和数据区分块交给ForkJoinPool解析
+	 */
+	public String disassembleParallel(List<String> binary) {
+		int[] words = new int[binary.size()];
+		Arrays.parallelSetAll(words, i -> Util.parseWord(binary.get(i)));
+		return disassembleParallel(words, binary::get);
+	}
+
+	/**
+	 * 并行解析文件，解析完成后按顺序把清单直接写入listing，不生成每块的字符串
+	 *
+	 * @param listing 清单输出，为null时不生成清单
+	 */
+	public void disassembleParallel(Path binary, ChannelWriter listing) throws IOException {
+		int[] words = Loader.loadAll(binary);
+		disassembleParallel(words, null);
+		if (listing != null) {
+			int split = instructions.size();
+			for (int i = 0; i < words.length; i++) {
+				listing(listing, words[i], i < split ? instructions.get(i) : data.get(i - split));
+			}
+		}
+	}
+
+	/**
+	 * @param words  全部的32位字
+	 * @param binary 生成清单用的原始01串，为null时不生成清单
+	 * @return 反汇编清单
+	 */
+	private String disassembleParallel(int[] words, IntFunction<String> binary) {
+		this.instructions.clear();
+		this.data.clear();
+		this.breaked = false;
+
+		int length = words.length, split = length;
+		boolean found = false;
+		for (int i = 0; i < length && !found; i++) {
+			if (Assembler.isBreak(words[i])) {
+				split = i + 1;
+				found = true;
+			}
+		}
+		int chunks = (length + DisassembleTask.CHUNK - 1) / DisassembleTask.CHUNK;
+		Instruction[] decoded = new Instruction[length];
+		String[] parts = binary == null ? null : new String[chunks];
+		ForkJoinPool.commonPool().invoke(new DisassembleTask(words, binary, address, split, decoded, parts, 0, chunks));
+
+		List<Instruction> all = Arrays.asList(decoded);
+		instructions.addAll(all.subList(0, split));
+		data.addAll(all.subList(split, length));
+		this.breaked = found;
+		address += 4 * length;
+		return parts == null ? "" : String.join("", parts);
+	}
+
+	/**
+	 * 分块解析任务，每块{@link #CHUNK}个字
+	 */
+	private static class DisassembleTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		static final int CHUNK = 4096;
+
+		private final int[] words;
+		private final IntFunction<String> binary;
+		private final int base;
+		/**
+		 * 数据区的起始下标
+		 */
+		private final int split;
+		private final Instruction[] decoded;
+		private final String[] parts;
+		private final int from, to;
+
+		DisassembleTask(int[] words, IntFunction<String> binary, int base, int split, Instruction[] decoded, String[] parts, int from, int to) {
+			this.words = words;
+			this.binary = binary;
+			this.base = base;
+			this.split = split;
+			this.decoded = decoded;
+			this.parts = parts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new DisassembleTask(words, binary, base, split, decoded, parts, from, mid),
+						new DisassembleTask(words, binary, base, split, decoded, parts, mid, to));
+				return;
+			}
+			int begin = from * CHUNK, end = Math.min(begin + CHUNK, words.length);
+			StringBuilder builder = parts == null ? null : new StringBuilder();
+			for (int i = begin; i < end; i++) {
+				Instruction instruction = new Instruction(base + 4 * i, Assembler.decode(words[i], i >= split));
+				decoded[i] = instruction;
+				if (builder != null) {
+					builder.append(listing(binary.apply(i), instruction));
+				}
+			}
+			if (parts != null) {
+				parts[from] = builder.toString();
+			}
+		}
+	}
+
+	/**
+	 * 直接从文件流式解析，不保留每一行的字符串
+	 *
+	 * @param binary 输入文件
+	 */
+	public void disassemble(Path binary) throws IOException {
+		disassemble(binary, null);
+	}
+
+	/**
+	 * 流式解析，边解析边输出清单
+	 *
+	 * @param binary  输入文件
+	 * @param listing 清单输出，为null时不生成清单
+	 */
+	public void disassemble(Path binary, ChannelWriter listing) throws IOException {
+		this.instructions.clear();
+		this.data.clear();
+		this.breaked = false;
+
+		if (listing == null) {
+			Loader.load(binary, this::disassemble);
+			return;
+		}
+		try {
+			Loader.load(binary, word -> listing(listing, word, disassemble(word)));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
 	public Instruction disassemble(String binary) {
+		return disassemble(Util.parseWord(binary));
+	}
+
+	/**
+	 * 按32位字解析，避免逐字符截取
+	 *
+	 * @param word 指令字
+	 * @return 解析后的指令
+	 */
+	public Instruction disassemble(int word) {
 		//解析指令操作码
-		Instruction instruction = new Instruction(address);
-		if (!Assembler.BREAK) {
-			//解析指令类别
-			Assembler.parseInstruction(binary, instruction);
+		Instruction instruction = new Instruction(address, Assembler.decode(word, breaked));
+		if (!breaked) {
 			instructions.add(instruction);
 		} else {
-			Assembler.parseData(binary, instruction);
 			data.add(instruction);
 		}
-		if (!Assembler.BREAK) {
-			Assembler.BREAK = "BREAK".equals(instruction.getOperation());
+		if (!breaked) {
+			breaked = instruction.getOpcode() == Opcode.BREAK;
 		}
 		address += 4;
 		return instruction;
 	}
 
 	public String simulate() {
-		if (this.instructions != null) {
-			//Simulator simulator = new Simulator(instructions, data, 0);
-			//return simulator.simulate();
-			Pipeline pipeline = new Pipeline(data, instructions);
-			String simulate = pipeline.simulate();
-			//System.out.println(simulate);
-			return simulate;
-		}
-		return "";
+		return simulate(false);
+	}
+
+	public void setFilter(TraceFilter filter) {
+		this.filter = filter;
+	}
+
+	public void setFormatThreads(int formatThreads) {
+		this.formatThreads = formatThreads;
+	}
+
+	public void setMachine(Machine machine) {
+		this.machine = machine;
 	}
 
 	/**
-	 * 汇编器
+	 * 设计空间扫描：同一程序在每种配置上各跑一遍（不输出轨迹），并行执行
+	 *
+	 * @param machines    配置
+	 * @param parallelism 线程数
+	 * @param limit       每种配置最多模拟的周期数
+	 * @return 每种配置一行：配置、周期数、完成的指令数、CPI、分支数、预测错误数、转发数、I-cache和D-cache缺失数，按输入顺序；
+	 * 没跑到BREAK的标limit，完成的指令数与多数配置不同的标mismatch（默认配置的流水线JR不跳转、BREAK不等在途指令，执行的不是同一串指令）
 	 */
-	private static class Assembler {
-		private static boolean BREAK = false;
-
-		public static void parseInstruction(String binary, Instruction instruction) {
-			//解析指令操作码
-			if (!Assembler.BREAK) {
-				//解析指令类别
-				int category = parseCategory(binary);
-				String op = parseOperation(binary, category);
-				instruction.setCategory(category);
-				instruction.setOperation(op);
-				//解析指令操作数
-				parseOpNumber(binary, instruction);
-			} else {
-				parseData(binary, instruction);
+	public String sweep(List<Machine> machines, int parallelism, long limit) throws InterruptedException {
+		List<Callable<Engine>> jobs = new ArrayList<>();
+		for (Machine machine : machines) {
+			jobs.add(() -> {
+				Engine engine = Engine.create(instructions, new State(data), instructions.get(0).getAddress(), machine);
+				engine.run(limit);
+				return engine;
+			});
+		}
+		List<Engine> engines = new ArrayList<>();
+		ExecutorService pool = Executors.newWorkStealingPool(parallelism);
+		try {
+			for (Future<Engine> future : pool.invokeAll(jobs)) {
+				try {
+					engines.add(future.get());
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				}
 			}
-			if (!BREAK) {
-				Assembler.BREAK = "BREAK".equals(instruction.getOperation());
+		} finally {
+			pool.shutdown();
+		}
+		//跑完的配置中最常见的指令数
+		Map<Long, Integer> counts = new HashMap<>();
+		long expected = -1;
+		for (Engine engine : engines) {
+			if (engine.isHalted() && counts.merge(engine.getRetired(), 1, Integer::sum) > counts.getOrDefault(expected, 0)) {
+				expected = engine.getRetired();
 			}
 		}
-
-		public static int parseCategory(String binary) {
-			String binCategory = binary.substring(0, 2);
-			return Category.getCategory(binCategory);
+		StringBuilder builder = new StringBuilder("machine\tcycles\tinstructions\tCPI\tbranches\tmispredicted\tbypassed\ticache misses\tdcache misses")
+				.append(System.lineSeparator());
+		for (int i = 0; i < engines.size(); i++) {
+			Engine engine = engines.get(i);
+			long cycles = engine.getCycles();
+			builder.append(String.format("%s\t%d\t%d\t%.3f\t%d\t%d\t%d\t%d\t%d%s", machines.get(i), cycles, engine.getRetired(),
+					(double) cycles / Math.max(engine.getRetired(), 1), engine.getBranches(), engine.getMispredicted(),
+					engine.getBypassed(), misses(engine.getICache()), misses(engine.getDCache()),
+					!engine.isHalted() ? "\tlimit" : engine.getRetired() != expected ? "\tmismatch" : ""))
+					.append(System.lineSeparator());
 		}
+		return builder.toString();
+	}
 
-		private static String parseOperation(String binary, int category) {
-			String opCode = binary.substring(2, 6);
-			return Category.getOperation(category, Integer.parseInt(opCode, 2));
-		}
+	private static long misses(Cache cache) {
+		return cache == null ? 0 : cache.getMisses();
+	}
 
-		private static void parseOpNumber(String binary, Instruction instruction) {
-			try {
-				//注意立即数和offset都是补码表示！
-				String rs = binary.substring(6, 11),
-						rt = binary.substring(11, 16),
-						rd = binary.substring(16, 21),
-						shift = binary.substring(21, 26),
-						offset = binary.substring(16),
-						operation = instruction.getOperation();
-				switch (instruction.getCategory()) {
-					case 1 -> {
-						switch (operation) {
-							case "J" -> {
-								//J指令的跳转地址：当前PC的高四位+toIndex<<2
-								int index = Integer.parseInt(instruction.getBinAddress().substring(0, 4) + binary.substring(6) + "00", 2);
-								instruction.setTarget(index);
-								instruction.setInstruction(String.format(Instruction.JUMP, operation, index));
-							}
-							case "JR" -> {
-								instruction.setRs(rs);
-								instruction.setInstruction(String.format(Instruction.JUMP, operation, instruction.getRs()));
-							}
-							case "BEQ" -> {
-								//int value = Integer.parseUnsignedInt(offset + "00", 2);
-								int value = Util.complement16toInteger(offset) << 2;
-								//offset = Util.signedExtend(offset + "00", 32);
-								instruction.setRs(rs).setRt(rt).setValue(value);
-								instruction.setInstruction(Instruction.TWO_REGISTER_OFFSET, operation, instruction.getRs(), instruction.getRt(), instruction.getValue());
-							}
-							case "BLTZ", "BGTZ" -> {
-								int value = Util.complement16toInteger(offset) << 2;
-								//offset = Util.signedExtend(offset + "00", 32);
-								instruction.setRs(rs).setValue(value);
-								instruction.setInstruction(Instruction.ONE_REGISTER_OFFSET, operation, instruction.getRs(), instruction.getValue());
-							}
+	/**
+	 * @param functional true使用功能模拟器，false使用流水线
+	 */
+	public String simulate(boolean functional) {
+		return simulate(functional, false);
+	}
 
-							case "BREAK" -> instruction.setInstruction("BREAK");
+	/**
+	 * @param delta true输出增量轨迹，用{@link TraceExpander}还原成完整格式
+	 */
+	public String simulate(boolean functional, boolean delta) {
+		StringBuilder builder = new StringBuilder();
+		try {
+			simulate(functional, delta, builder);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return builder.toString();
+	}
 
-							case "SLL", "SRL", "SRA" -> {
-								instruction.setRt(rt).setRd(rd);
-								instruction.setShift(shift);
-								instruction.setInstruction(String.format(Instruction.CAL_IMMEDIATE, operation, instruction.getRd(), instruction.getRt(), instruction.getShift()));
-							}
+	/**
+	 * 逐周期把轨迹写入out，内存中不保留整个轨迹
+	 *
+	 * @param out 一般是{@link ChannelWriter}
+	 */
+	public void simulate(boolean functional, boolean delta, Appendable out) throws IOException {
+		if (this.instructions != null) {
+			if (functional) {
+				Simulator simulator = new Simulator(instructions, data, 0);
+				simulator.setDelta(delta);
+				simulator.filter = filter;
+				simulator.simulate(out);
+				return;
+			}
+			if (machine.getEngine().equals("tomasulo")) {
+				if (delta) {
+					throw new IllegalArgumentException("Delta trace is not supported by the tomasulo engine");
+				}
+				Engine engine = Engine.create(instructions, new State(data), instructions.get(0).getAddress(), machine);
+				engine.setFilter(filter);
+				engine.simulate(Long.MAX_VALUE, out);
+				return;
+			}
+			Pipeline pipeline = new Pipeline(data, instructions, machine);
+			pipeline.setDelta(delta);
+			pipeline.setFilter(filter);
+			pipeline.setFormatThreads(formatThreads);
+			pipeline.simulate(Long.MAX_VALUE, out);
+		}
+	}
 
-							case "SW", "LW" -> {
-								instruction.setRs(rs).setRt(rt);
-								//offset = Util.signedExtend(offset, 32);
-								int value = Util.complement16toInteger(offset);
-								instruction.setValue(value);
-								instruction.setInstruction(Instruction.LOAD_SAVE_WORD, operation, instruction.getRt(), instruction.getValue(), instruction.getRs());
-							}
-							case "NOP" -> instruction.setInstruction("NOP");
+	/**
+	 * 流水线模拟，每interval个周期写一次检查点
+	 */
+	public String simulate(Path checkpoint, long interval) {
+		StringBuilder builder = new StringBuilder();
+		try {
+			simulate(checkpoint, interval, builder);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return builder.toString();
+	}
 
-						}
-					}
-					case 2 -> {
-						instruction.setRs(rs).setRt(rt);
-						Integer value = Util.complement16toInteger(offset);
-						instruction.setValue(value);
-						switch (operation) {
-							case "ADD", "SUB", "MUL", "AND",
-									"OR", "XOR", "NOR", "SLT" -> {
-								instruction.setRd(binary.substring(16, 21));
-								instruction.setInstruction(Instruction.THREE_REGISTER, operation, instruction.getRd(), instruction.getRs(), instruction.getRt());
-							}
-							case "ADDI", "ANDI", "ORI", "XORI" -> {
-								instruction.setValue(value);
-								instruction.setInstruction(Instruction.CAL_IMMEDIATE, operation, instruction.getRt(), instruction.getRs(), instruction.getValue());
-							}
-						}
-					}
-				}
-			} catch (NumberFormatException e) {
-				//System.err.println(instruction.getBinAddress());
-				e.printStackTrace();
+	/**
+	 * 检查点里记录了写检查点时已输出的字节数，用于续写
+	 */
+	public void simulate(Path checkpoint, long interval, Appendable out) throws IOException {
+		if (this.instructions != null) {
+			if (machine.getEngine().equals("tomasulo")) {
+				throw new UnsupportedOperationException("Checkpoints are not supported by the tomasulo engine");
 			}
+			Pipeline pipeline = new Pipeline(data, instructions, machine);
+			pipeline.setCheckpoint(checkpoint, interval);
+			pipeline.setFilter(filter);
+			pipeline.setFormatThreads(formatThreads);
+			pipeline.simulate(Long.MAX_VALUE, out);
+		}
+	}
 
+	/**
+	 * 从检查点继续流水线模拟，并继续按interval写检查点
+	 *
+	 * @return 检查点之后各周期的输出
+	 */
+	public String resume(Path checkpoint, long interval) throws IOException {
+		if (this.instructions == null) {
+			return "";
 		}
+		Pipeline pipeline = Pipeline.restore(instructions, checkpoint);
+		pipeline.setCheckpoint(checkpoint, interval);
+		pipeline.setFilter(filter);
+		pipeline.setFormatThreads(formatThreads);
+		return pipeline.simulate();
+	}
 
-		public static void parseData(String binary, Instruction instruction) {
-			if (binary != null) {
-				instruction.setValue(Integer.parseUnsignedInt(binary, 2));
-				instruction.setInstruction(String.valueOf(instruction.getValue()));
+	/**
+	 * 从检查点继续，output截断到检查点记录的位置后续写，结果与不中断的运行相同
+	 */
+	public void resume(Path checkpoint, long interval, Path output) throws IOException {
+		if (this.instructions != null) {
+			Pipeline pipeline = Pipeline.restore(instructions, checkpoint);
+			pipeline.setCheckpoint(checkpoint, interval);
+			pipeline.setFilter(filter);
+			pipeline.setFormatThreads(formatThreads);
+			try (ChannelWriter out = ChannelWriter.open(output, pipeline.written)) {
+				pipeline.simulate(Long.MAX_VALUE, out);
 			}
 		}
 	}
 
 	/**
-	 * 模拟器
+	 * 先用功能模拟器快进，再把寄存器、存储器和PC交给新的流水线做周期级模拟
+	 *
+	 * @param skip    快进的指令数
+	 * @param until   快进到该地址为止，-1表示不限
+	 * @param warmup  流水线预热的周期数，不输出轨迹也不计入统计
+	 * @param measure 统计的周期数，0表示到BREAK为止
+	 * @return 统计区间的流水线轨迹和统计结果
 	 */
-	private static class Simulator {
-		private Integer cycle;
-		public static final String SEPERATE = "--------------------" + System.lineSeparator();
-		public static final String CYCLE_INSTRUCTION = "Cycle:%d\t%d\t%s" + System.lineSeparator() + System.lineSeparator();
-		public static final String REGISTERS = "Registers" + System.lineSeparator()
-				+ "R00:\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d" + System.lineSeparator()
-				+ "R08:\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d" + System.lineSeparator()
-				+ "R16:\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d" + System.lineSeparator()
-				+ "R24:\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d" + System.lineSeparator()
-				+ System.lineSeparator() + "Data" + System.lineSeparator();
-		public static final String DATA = "%d:\t%d\t%s\t%d\t%d\t%d\t%d\t%d\t%d" + System.lineSeparator();
+	public Region fastForward(long skip, long until, long warmup, long measure) {
+		StringBuilder builder = new StringBuilder();
+		try {
+			Region region = fastForward(skip, until, warmup, measure, builder);
+			return new Region(builder.toString(), region.skipped, region.cycles, region.retired);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
 
-		private long PC;
+	/**
+	 * 轨迹逐周期写入out，返回的Region不含轨迹
+	 */
+	public Region fastForward(long skip, long until, long warmup, long measure, Appendable out) throws IOException {
+		if (this.instructions == null) {
+			return new Region("", 0, 0, 0);
+		}
+		Simulator simulator = new Simulator(instructions, data, 0);
+		simulator.run(skip, until);
+		if (simulator.end) {
+			return new Region("", simulator.executed, 0, 0);
+		}
+		Engine engine = Engine.create(instructions, simulator.state, (int) simulator.PC, machine);
+		engine.setFilter(filter);
+		if (engine instanceof Pipeline pipeline) {
+			pipeline.setFormatThreads(formatThreads);
+		}
+		engine.run(warmup);
+		long cycle = engine.getCycles(), retired = engine.getRetired();
+		engine.simulate(measure == 0 ? Long.MAX_VALUE : measure, out);
+		return new Region("", simulator.executed, engine.getCycles() - cycle, engine.getRetired() - retired);
+	}
 
-		private List<Instruction> instructions;
+	/**
+	 * 快进后统计区间的结果
+	 */
+	public static class Region {
+		private final String trace;
 
-		private Integer[] register;
+		//快进的指令数
+		private final long skipped;
 
-		private Integer dataAddr;
+		private final long cycles;
 
-		private Integer[] data;
+		//流水线完成的指令数
+		private final long retired;
 
-		public Simulator(List<Instruction> instructions, List<Instruction> data, Integer cycle) {
-			if (instructions != null && !instructions.isEmpty()) {
-				this.instructions = instructions;
-				this.register = new Integer[32];
-				Arrays.fill(this.register, 0);
-				this.PC = instructions.get(0).getAddress();
-			}
-			if (data != null && !data.isEmpty()) {
-				this.dataAddr = data.get(0).getAddress();
-				this.data = new Integer[data.size()];
-				Arrays.fill(this.data, 0);
-				fillData(data);
-			}
-			this.cycle = cycle;
+		Region(String trace, long skipped, long cycles, long retired) {
+			this.trace = trace;
+			this.skipped = skipped;
+			this.cycles = cycles;
+			this.retired = retired;
 		}
 
-		private String pipeline() {
-			return "";
+		public String getTrace() {
+			return trace;
 		}
 
-		private String simulate() {
-			if (instructions != null) {
-				StringBuilder builder = new StringBuilder();
-				Instruction instruction;
-				boolean end = false;
-				do {
-					builder.append(SEPERATE);
-					cycle++;
-					//System.out.println("PC: " + PC);
-					instruction = instructions.get((int) ((PC - 256) / 4));
-					//System.out.println(instruction);
-					builder.append(String.format(CYCLE_INSTRUCTION, cycle, instruction.getAddress(), instruction.getInstruction()));
-					PC += 4;
-					Integer category = instruction.getCategory();
-					String operation = instruction.getOperation();
-					Integer sa = instruction.getShift(),
-							rs = instruction.getRs(),
-							rt = instruction.getRt(),
-							rd = instruction.getRd(),
-							value = instruction.getValue();
-					switch (category) {
-						case 1 -> {
-							switch (operation) {
-								case "J" -> this.PC = instruction.getTarget();
-
-								case "JR" -> this.PC = instruction.getRs();
-
-								case "SLL", "SRL", "SRA" -> register[rd] = Category.operationMap.get(operation).operation(register[rt], sa);
-									/*switch (operation) {
-										case "SLL" -> register[rd] = register[rt] << sa;
-										case "SRL" -> register[rd] = register[rt] >>> sa;
-										case "SRA" -> register[rd] = register[rt] >> sa;
-									}*/
-
-								case "BEQ" -> {
-									if (register[rs].equals(register[rt])) {
-										PC += Integer.parseUnsignedInt(Util.signedExtend(Util.int2String(value, 18), 32), 2);
-									}
-								}
-								case "BLTZ" -> {
-									if (register[rs] < 0) {
-										PC += Integer.parseUnsignedInt(Util.signedExtend(Util.int2String(value, 18), 32), 2);
-									}
-								}
-								case "BGTZ" -> {
-									if (register[rs] > 0) {
-										PC += Integer.parseUnsignedInt(Util.signedExtend(Util.int2String(value, 18), 32), 2);
-									}
-								}
-								case "NOP" -> {
+		public long getSkipped() {
+			return skipped;
+		}
 
-								}
-								case "BREAK" -> end = true;
+		public long getCycles() {
+			return cycles;
+		}
 
-								case "LW" -> {
-									int index = Integer.parseUnsignedInt(Util.signedExtend(Util.int16toString(value), 32), 2);
-									//System.out.println("LW: " + (value + register[rs] - dataAddr) / 4);
-									register[rt] = data[(index + register[rs] - dataAddr) / 4];
-								}
-								case "SW" -> {
-									int index = Integer.parseUnsignedInt(Util.signedExtend(Util.int16toString(value), 32), 2);
-									data[(index + register[rs] - dataAddr) / 4] = register[rt];
-								}
+		public long getRetired() {
+			return retired;
+		}
 
-							}
-						}
-						case 2 -> {
-							switch (operation) {
-								case "ADD" -> register[rd] = register[rs] + register[rt];
-								case "SUB" -> register[rd] = register[rs] - register[rt];
-								case "MUL" -> register[rd] = register[rs] * register[rt];
-								case "AND" -> register[rd] = register[rs] & register[rt];
-								case "OR" -> register[rd] = register[rs] | register[rt];
-								case "XOR" -> register[rd] = register[rs] ^ register[rt];
-								case "NOR" -> register[rd] = ~(register[rs] ^ register[rt]);
-								case "SLT" -> {
-									if (register[rs] < register[rt]) {
-										register[rd] = 1;
-									} else register[rd] = 0;
-								}
-								case "ADDI", "ANDI", "ORI", "XORI" -> register[rt] = Category.operationMap.get(operation).operation(register[rs], value);
-							}
+		@Override
+		public String toString() {
+			return String.format("fast-forward %d instructions, measured %d cycles, %d instructions, IPC %.3f",
+					skipped, cycles, retired, (double) retired / Math.max(cycles, 1));
+		}
+	}
+
+	/**
+	 * 批量模拟
+	 * <p>
+	 * 输入是目录（其中所有文件）或清单（每行一个路径，相对清单所在目录，#开头为注释）。
+	 * 每个程序在work-stealing线程池中独立反汇编和模拟，输出写到各自的文件，最后按输入顺序写summary.tsv
+	 */
+	public static final class Batch {
+		private final Path output;
+
+		private final boolean functional;
+
+		//每个程序最多模拟的周期数（功能模拟器为指令数）
+		private final long limit;
+
+		private final TraceFilter filter;
+
+		private final Machine machine;
+
+		//每个工作线程复用一个输出缓冲
+		private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(ChannelWriter::allocate);
+
+		public Batch(Path output, boolean functional, long limit, TraceFilter filter, Machine machine) {
+			this.output = output;
+			this.functional = functional;
+			this.limit = limit;
+			this.filter = filter;
+			this.machine = machine;
+		}
+
+		/**
+		 * @param source 目录或清单
+		 * @return 按文件名排序（目录）或清单顺序的程序
+		 */
+		public static List<Path> programs(Path source) throws IOException {
+			List<Path> programs = new ArrayList<>();
+			if (Files.isDirectory(source)) {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+					for (Path path : stream) {
+						if (Files.isRegularFile(path) && !path.getFileName().toString().startsWith(".")) {
+							programs.add(path);
 						}
 					}
-					builder.append(String.format(REGISTERS, (Object[]) this.register));
-					for (int i = 0; i < data.length; i += 8) {
-						builder.append(String.format(DATA, dataAddr + i * 4, data[i], data[i + 1], data[i + 2], data[i + 3], data[i + 4], data[i + 5], data[i + 6], data[i + 7]));
-					}
-					builder.append(System.lineSeparator());
-					//System.out.println(builder.toString());
-				} while (!end);
-				return builder.toString();
+				}
+				Collections.sort(programs);
+				return programs;
 			}
-			return "";
+			Path base = source.toAbsolutePath().getParent();
+			for (String line : Files.readAllLines(source)) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#")) {
+					programs.add(base.resolve(line));
+				}
+			}
+			return programs;
 		}
 
 		/**
-		 * 对16位 offset进行符号扩展 先左i位，再符号扩展至32位
+		 * 并行模拟所有程序
+		 *
+		 * @param parallelism 线程数
+		 * @return 汇总
 		 */
-		/*private static int extend(int offset, int i) {
-			int flag = (offset >> 15 & 1) == 1 ? -1 : 1;
-			int temp = offset & 0x0000FFFF;
-			temp = temp << i;
-			//System.out.println(Integer.toHexString(temp) + flag);
-			if (flag == -1) {
-				//需要补14个1
-				temp |= 0xFFFC;
+		public String run(List<Path> programs, int parallelism) throws IOException, InterruptedException {
+			Files.createDirectories(output);
+			//输出文件名取程序文件名去掉扩展名，重名时加序号
+			Map<String, Integer> seen = new HashMap<>();
+			List<Callable<Result>> jobs = new ArrayList<>();
+			for (Path program : programs) {
+				String name = program.getFileName().toString();
+				int dot = name.lastIndexOf('.');
+				if (dot > 0) {
+					name = name.substring(0, dot);
+				}
+				int count = seen.merge(name, 1, Integer::sum);
+				String unique = count == 1 ? name : name + "-" + count;
+				jobs.add(() -> run(program, unique));
+			}
+			long begin = System.nanoTime();
+			ExecutorService pool = Executors.newWorkStealingPool(parallelism);
+			List<Future<Result>> futures;
+			try {
+				futures = pool.invokeAll(jobs);
+			} finally {
+				pool.shutdown();
 			}
-			return temp;
-		}*/
-		private void fillData(List<Instruction> data) {
-			for (int i = 0, len = data.size(); i < len; i++) {
-				this.data[i] = data.get(i).getValue();
+			long elapsed = System.nanoTime() - begin;
+			//limit是达到周期上限，不算失败
+			int failed = 0, limited = 0;
+			long cycles = 0;
+			try (ChannelWriter summary = ChannelWriter.open(output.resolve("summary.tsv"))) {
+				summary.append("program	status	cycles	instructions	ms").append(System.lineSeparator());
+				for (Future<Result> future : futures) {
+					Result result;
+					try {
+						result = future.get();
+					} catch (ExecutionException e) {
+						throw new IOException(e.getCause());
+					}
+					if (result.status.startsWith("error")) {
+						failed++;
+					} else if (result.status.equals("limit")) {
+						limited++;
+					}
+					cycles += result.cycles;
+					summary.append(result.toString()).append(System.lineSeparator());
+				}
 			}
-			//System.out.println(Arrays.toString(this.data));
+			return String.format("batch: %d programs, %d failed, %d hit the cycle limit, %d cycles in %.1f ms (%.1f programs/s) on %d threads",
+					programs.size(), failed, limited, cycles, elapsed / 1e6, programs.size() * 1e9 / elapsed, parallelism);
 		}
 
+		/**
+		 * 模拟一个程序，异常记录在结果中，不影响其他程序
+		 */
+		private Result run(Path program, String name) {
+			long begin = System.nanoTime();
+			MIPSsim simulator = new MIPSsim(256);
+			ByteBuffer buffer = buffers.get();
+			try {
+				try (ChannelWriter listing = ChannelWriter.open(output.resolve(name + ".disassembly.txt"), buffer)) {
+					simulator.disassemble(program, listing);
+				}
+				if (simulator.instructions.isEmpty()) {
+					return new Result(name, "empty", 0, 0, System.nanoTime() - begin);
+				}
+				try (ChannelWriter out = ChannelWriter.open(output.resolve(name + ".simulation.txt"), buffer)) {
+					if (functional) {
+						Simulator engine = new Simulator(simulator.instructions, simulator.data, 0);
+						engine.filter = filter;
+						engine.simulate(out, limit);
+						return new Result(name, engine.end ? "ok" : "limit", engine.executed, engine.executed,
+								System.nanoTime() - begin);
+					}
+					Engine engine = Engine.create(simulator.instructions, new State(simulator.data),
+							simulator.instructions.get(0).getAddress(), machine);
+					engine.setFilter(filter);
+					engine.simulate(limit, out);
+					return new Result(name, engine.isHalted() ? "ok" : "limit", engine.getCycles(), engine.getRetired(),
+							System.nanoTime() - begin);
+				}
+			} catch (Exception e) {
+				return new Result(name, "error: " + e, 0, 0, System.nanoTime() - begin);
+			}
+		}
 	}
 
-	public static class Pipeline {
-
-		public Integer PC;
+	/**
+	 * 批量模拟中一个程序的结果
+	 */
+	public static final class Result {
+		private final String name;
 
-		public static Integer BASE;
+		//ok、limit（达到周期上限）、empty或error
+		private final String status;
 
-		private final List<Instruction> instructions;
+		private final long cycles;
 
-		private IFUnit ifUnit = new IFUnit();
+		private final long instructions;
 
-		private List<Instruction> preIssue = null;
+		private final long nanos;
 
-		private Deque<Buffer> preALU1 = null;
+		Result(String name, String status, long cycles, long instructions, long nanos) {
+			this.name = name;
+			this.status = status.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+			this.cycles = cycles;
+			this.instructions = instructions;
+			this.nanos = nanos;
+		}
 
-		private Buffer preMEM = null;
+		@Override
+		public String toString() {
+			return String.format("%s\t%s\t%d\t%d\t%.3f", name, status, cycles, instructions, nanos / 1e6);
+		}
+	}
 
-		private Buffer postMEM = null;
+	/**
+	 * 基准测试：不输出轨迹运行一遍，统计吞吐量、堆分配和GC
+	 *
+	 * @param functional true使用功能模拟器，false使用流水线
+	 * @return 统计结果
+	 */
+	public String benchmark(boolean functional) {
+		return benchmark(functional, true);
+	}
 
-		private Deque<Buffer> preALU2 = null;
+	/**
+	 * @param jit 功能模拟器是否编译热点基本块
+	 */
+	public String benchmark(boolean functional, boolean jit) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocated = threads.getCurrentThreadAllocatedBytes(), collections = 0, pause = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			collections -= gc.getCollectionCount();
+			pause -= gc.getCollectionTime();
+		}
+		long begin = System.nanoTime(), steps;
+		String branches = "";
+		if (functional) {
+			Simulator simulator = new Simulator(instructions, data, 0);
+			simulator.setJit(jit);
+			simulator.run();
+			steps = simulator.executed;
+		} else {
+			Engine engine = Engine.create(instructions, new State(data), instructions.get(0).getAddress(), machine);
+			engine.run(Long.MAX_VALUE);
+			steps = engine.getCycles();
+			if (!machine.getPredictor().equals("none") || engine instanceof Tomasulo) {
+				branches = ", " + engine.getBranchStats();
+			}
+			if (machine.isBypass() && engine instanceof Pipeline pipeline) {
+				branches += ", " + pipeline.getBypassStats();
+			}
+			for (Cache cache : new Cache[]{engine.getICache(), engine.getDCache()}) {
+				if (cache != null) {
+					branches += ", " + cache;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - begin;
+		allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			collections += gc.getCollectionCount();
+			pause += gc.getCollectionTime();
+		}
+		return String.format("%s: %d %s in %.1f ms (%.0f/s), allocated %d bytes (%.2f/%s), gc %d times %d ms%s",
+				functional ? (jit ? "functional(jit)" : "functional") : machine.getEngine().equals("tomasulo") ? "tomasulo" : "pipeline", steps, functional ? "instructions" : "cycles",
+				elapsed / 1e6, steps * 1e9 / elapsed, allocated, (double) allocated / Math.max(steps, 1),
+				functional ? "instruction" : "cycle", collections, pause, branches);
+	}
 
-		private Buffer postALU = null;
+	/**
+	 * 把增量轨迹还原成完整的simulation.txt格式
+	 */
+	static final class TraceExpander {
+		private TraceExpander() {
+		}
+
+		public static void expand(BufferedReader in, Appendable out) throws IOException {
+			boolean pipeline = true;
+			State state = null;
+			String[] sections = new String[7];
+			Arrays.fill(sections, "");
+			//当前周期，functional时还有地址和指令
+			String[] current = null;
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				String rest = line.substring(2);
+				switch (line.charAt(0)) {
+					case 'T' -> pipeline = rest.equals("pipeline");
+					case 'D' -> {
+						String[] range = rest.split(" ");
+						state = new State(Integer.parseInt(range[0]), Integer.parseInt(range[1]));
+					}
+					case 'C', 'I' -> {
+						flush(out, pipeline, current, sections, state);
+						current = rest.split("\t", 3);
+					}
+					case 'S' -> {
+						int tab = rest.indexOf('\t');
+						sections[Integer.parseInt(rest.substring(0, tab))] = Pipeline.Printer.unescape(rest.substring(tab + 1));
+					}
+					case 'R' -> {
+						int space = rest.indexOf(' ');
+						state.setRegister(Integer.parseInt(rest.substring(0, space)), Integer.parseInt(rest.substring(space + 1)));
+					}
+					case 'M' -> {
+						int space = rest.indexOf(' ');
+						state.store(Integer.parseInt(rest.substring(0, space)), Integer.parseInt(rest.substring(space + 1)));
+					}
+					default -> throw new IOException("Unknown trace record: " + line);
+				}
+			}
+			flush(out, pipeline, current, sections, state);
+		}
+
+		private static void flush(Appendable out, boolean pipeline, String[] current, String[] sections, State state) throws IOException {
+			if (current == null) {
+				return;
+			}
+			if (pipeline) {
+				out.append(Pipeline.Printer.getCycle(Integer.parseInt(current[0])));
+				for (String section : sections) {
+					out.append(section);
+				}
+			} else {
+				out.append(Simulator.SEPERATE);
+				out.append(String.format(Simulator.CYCLE_INSTRUCTION, Integer.parseInt(current[0]), Integer.parseInt(current[1]), current[2]));
+			}
+			out.append(Pipeline.Printer.getRegisters(state.getRegisters()));
+			out.append(Pipeline.Printer.getData(state));
+			if (!pipeline) {
+				out.append(System.lineSeparator());
+			}
+		}
+	}
+
+	/**
+	 * 汇编器
+	 */
+	private static class Assembler {
+		private static final int CACHE_BITS = 16;
+
+		/**
+		 * 译码缓存，相同编码只译码一次
+		 * <p>
+		 * 直接映射，槽位冲突时替换原来的结果，占用的内存有上限；
+		 * 缓存的对象不可变，并行解析时不需要加锁
+		 */
+		private static final Decoded[] CACHE = new Decoded[1 << CACHE_BITS];
+
+		/**
+		 * 查询译码缓存
+		 *
+		 * @param word 32位字
+		 * @param data 是否位于BREAK之后的数据区
+		 * @return 共享的译码结果
+		 */
+		public static Decoded decode(int word, boolean data) {
+			int slot = ((data ? ~word : word) * 0x9E3779B9) >>> (32 - CACHE_BITS);
+			Decoded decoded = CACHE[slot];
+			if (decoded == null || decoded.getWord() != word || decoded.isData() != data) {
+				decoded = data ? parseData(word) : parseInstruction(word);
+				CACHE[slot] = decoded;
+			}
+			return decoded;
+		}
+
+		/**
+		 * 01 0101 即BREAK
+		 */
+		public static boolean isBreak(int word) {
+			return word >>> 26 == 0b010101;
+		}
+
+		/**
+		 * 解析指令，字段全部由移位和掩码取出
+		 * <p>
+		 * 31-30 类别 | 29-26 操作码 | 25-21 rs | 20-16 rt | 15-11 rd | 10-6 sa | 15-0 offset/immediate
+		 */
+		public static Decoded parseInstruction(int word) {
+			//解析指令类别
+			int category = parseCategory(word);
+			Opcode opcode = parseOperation(word, category);
+			String operation = opcode.name();
+			//解析指令操作数
+			//注意立即数和offset都是补码表示！
+			int rs = (word >>> 21) & 0x1F,
+					rt = (word >>> 16) & 0x1F,
+					rd = (word >>> 11) & 0x1F,
+					shift = (word >>> 6) & 0x1F,
+					offset = Util.signExtend16(word);
+			switch (opcode) {
+				case J -> {
+					//J指令的跳转地址：当前PC的高四位+toIndex<<2
+					return new Decoded(word, false, category, opcode, null, null, null, null, null, 0,
+							(word & 0x03FFFFFF) << 2, null);
+				}
+				case JR -> {
+					return new Decoded(word, false, category, opcode, rs, null, null, null, null, 0, null,
+							String.format(Instruction.JUMP, operation, rs));
+				}
+				case BEQ -> {
+					int value = offset << 2;
+					return new Decoded(word, false, category, opcode, rs, rt, null, null, value, value, null,
+							String.format(Instruction.TWO_REGISTER_OFFSET, operation, rs, rt, value));
+				}
+				case BLTZ, BGTZ -> {
+					int value = offset << 2;
+					return new Decoded(word, false, category, opcode, rs, null, null, null, value, value, null,
+							String.format(Instruction.ONE_REGISTER_OFFSET, operation, rs, value));
+				}
+				case SLL, SRL, SRA -> {
+					return new Decoded(word, false, category, opcode, null, rt, rd, shift, null, shift, null,
+							String.format(Instruction.CAL_IMMEDIATE, operation, rd, rt, shift));
+				}
+				case SW, LW -> {
+					return new Decoded(word, false, category, opcode, rs, rt, null, null, offset, offset, null,
+							String.format(Instruction.LOAD_SAVE_WORD, operation, rt, offset, rs));
+				}
+				case BREAK, NOP -> {
+					return new Decoded(word, false, category, opcode, null, null, null, null, null, 0, null, operation);
+				}
+				case ADDI -> {
+					return new Decoded(word, false, category, opcode, rs, rt, null, null, offset, offset, null,
+							String.format(Instruction.CAL_IMMEDIATE, operation, rt, rs, offset));
+				}
+				case ANDI, ORI, XORI -> {
+					//逻辑运算的立即数是0扩展
+					return new Decoded(word, false, category, opcode, rs, rt, null, null, offset, offset & 0xFFFF, null,
+							String.format(Instruction.CAL_IMMEDIATE, operation, rt, rs, offset));
+				}
+				default -> {
+					//ADD, SUB, MUL, AND, OR, XOR, NOR, SLT
+					return new Decoded(word, false, category, opcode, rs, rt, rd, null, offset, 0, null,
+							String.format(Instruction.THREE_REGISTER, operation, rd, rs, rt));
+				}
+			}
+		}
+
+		public static int parseCategory(int word) {
+			return Category.getCategory(word >>> 30);
+		}
+
+		private static Opcode parseOperation(int word, int category) {
+			return Opcode.of(category, (word >>> 26) & 0xF);
+		}
+
+		public static Decoded parseData(int word) {
+			return new Decoded(word, true, null, null, null, null, null, null, word, word, null, String.valueOf(word));
+		}
+	}
+
+	/**
+	 * 模拟器
+	 */
+	private static class Simulator {
+		private int cycle;
+		public static final String SEPERATE = "--------------------" + System.lineSeparator();
+		public static final String CYCLE_INSTRUCTION = "Cycle:%d\t%d\t%s" + System.lineSeparator() + System.lineSeparator();
+
+		private long PC;
+
+		private List<Instruction> instructions;
+
+		private final State state;
+
+		private boolean end = false;
+
+		//已执行的指令数
+		private long executed = 0;
+
+		//不输出轨迹时是否把热点基本块编译成字节码
+		private boolean jit = true;
+
+		//是否输出增量轨迹
+		private boolean delta = false;
+
+		private TraceFilter filter = new TraceFilter();
+
+		//以每条指令为入口的基本块：进入次数、编译结果、长度，以及是否以BREAK结束
+		private int[] counts;
+
+		private Block[] blocks;
+
+		private int[] lengths;
+
+		private boolean[] halts;
+
+		public Simulator(List<Instruction> instructions, List<Instruction> data, Integer cycle) {
+			if (instructions != null && !instructions.isEmpty()) {
+				this.instructions = instructions;
+				this.PC = instructions.get(0).getAddress();
+			}
+			this.state = new State(data);
+			this.cycle = cycle;
+		}
+
+		public void setJit(boolean jit) {
+			this.jit = jit;
+		}
+
+		/**
+		 * @return PC对应的指令在指令段中的下标
+		 */
+		private int index(long pc) {
+			long base = instructions.get(0).getAddress(), index = (pc - base) / 4;
+			if (pc < base || (pc & 3) != 0 || index >= instructions.size()) {
+				throw new IllegalStateException("PC outside text segment: " + pc);
+			}
+			return (int) index;
+		}
+
+		private String pipeline() {
+			return "";
+		}
+
+		/**
+		 * 增量轨迹：每条指令只输出被改写的寄存器和存储字
+		 */
+		public void setDelta(boolean delta) {
+			this.delta = delta;
+			state.setTracking(delta);
+		}
+
+		private String simulate() {
+			StringBuilder builder = new StringBuilder();
+			try {
+				simulate(builder);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return builder.toString();
+		}
+
+		/**
+		 * 每条指令的输出写入out后丢弃，只复用一个缓冲
+		 */
+		private void simulate(Appendable out) throws IOException {
+			simulate(out, Long.MAX_VALUE);
+		}
+
+		/**
+		 * @param limit 最多执行的指令数
+		 */
+		private void simulate(Appendable out, long limit) throws IOException {
+			if (instructions == null) {
+				return;
+			}
+			StringBuilder builder = new StringBuilder();
+			if (delta) {
+				Pipeline.Printer.appendDeltaHeader(builder, "functional", state);
+			}
+			do {
+				Instruction instruction = step();
+				//过滤掉的周期不格式化
+				if (!filter.accepts(cycle, end) || !filter.watches(instruction)) {
+					continue;
+				}
+				if (delta) {
+					builder.append("I ").append(cycle).append('\t').append(instruction.getAddress())
+							.append('\t').append(instruction.getInstruction()).append('\n');
+					Pipeline.Printer.appendChanges(builder, state);
+				} else {
+					builder.append(SEPERATE);
+					builder.append(String.format(CYCLE_INSTRUCTION, cycle, instruction.getAddress(), instruction.getInstruction()));
+					builder.append(Pipeline.Printer.getRegisters(state.getRegisters()));
+					builder.append(Pipeline.Printer.getData(state));
+					builder.append(System.lineSeparator());
+				}
+				out.append(builder);
+				builder.setLength(0);
+			} while (!end && executed < limit);
+		}
+
+		/**
+		 * 不输出轨迹，直接执行到BREAK
+		 * <p>
+		 * 冷代码逐条解释执行；一个基本块被进入{@link BlockCompiler#THRESHOLD}次后编译为隐藏类，之后直接调用
+		 */
+		private void run() {
+			run(Long.MAX_VALUE, -1);
+		}
+
+		/**
+		 * 不输出轨迹，执行到BREAK、执行满limit条指令或PC到达until为止
+		 *
+		 * @param limit 最多执行的指令数
+		 * @param until 停止的地址，-1表示不限
+		 */
+		private void run(long limit, long until) {
+			if (instructions == null) {
+				return;
+			}
+			if (until < 0) {
+				//不限时换成不可能到达的地址，JR跳到-1时不能当作到达until
+				until = Long.MAX_VALUE;
+			}
+			if (!jit) {
+				while (!end && executed < limit && PC != until) {
+					step();
+				}
+				return;
+			}
+			int size = instructions.size();
+			if (blocks == null) {
+				counts = new int[size];
+				blocks = new Block[size];
+				lengths = new int[size];
+				halts = new boolean[size];
+			}
+			int[] register = state.getRegisters();
+			while (!end && executed < limit && PC != until) {
+				int index = index(PC);
+				Block block = blocks[index];
+				if (block == null && ++counts[index] >= BlockCompiler.THRESHOLD) {
+					lengths[index] = BlockCompiler.length(instructions, index);
+					halts[index] = instructions.get(index + lengths[index] - 1).getOpcode() == Opcode.BREAK;
+					block = blocks[index] = BlockCompiler.compile(instructions, index);
+				}
+				//剩余指令数不够整块执行，或until落在块内时，退回解释执行
+				if (block != null && executed + lengths[index] <= limit
+						&& (until < PC || until >= PC + 4L * lengths[index])) {
+					//是否停机由块的最后一条指令决定，不看返回值：JR可以跳到任何地址
+					end = halts[index];
+					PC = block.execute(register, state);
+					executed += lengths[index];
+					cycle += lengths[index];
+				} else {
+					//解释执行到基本块结束
+					int length = 0;
+					Instruction instruction;
+					do {
+						instruction = step();
+					} while (!end && executed < limit && PC != until
+							&& !BlockCompiler.endsBlock(instruction.getOpcode(), ++length));
+				}
+			}
+		}
+
+		/**
+		 * 执行一条指令
+		 *
+		 * @return 执行的指令
+		 */
+		private Instruction step() {
+			cycle++;
+			executed++;
+			//System.out.println("PC: " + PC);
+			Instruction instruction = instructions.get(index(PC));
+			//System.out.println(instruction);
+			PC += 4;
+			Opcode opcode = instruction.getOpcode();
+			State state = this.state;
+			switch (opcode) {
+				case J -> this.PC = instruction.getTarget();
+
+				case JR -> this.PC = state.getRegister(instruction.getRs());
+
+				case BEQ -> {
+					if (state.getRegister(instruction.getRs()) == state.getRegister(instruction.getRt())) {
+						PC = instruction.getTarget();
+					}
+				}
+				case BLTZ -> {
+					if (state.getRegister(instruction.getRs()) < 0) {
+						PC = instruction.getTarget();
+					}
+				}
+				case BGTZ -> {
+					if (state.getRegister(instruction.getRs()) > 0) {
+						PC = instruction.getTarget();
+					}
+				}
+				case NOP -> {
+
+				}
+				case BREAK -> end = true;
+
+				case LW -> state.setRegister(instruction.getRt(), state.load(instruction.getImmediate() + state.getRegister(instruction.getRs())));
+
+				case SW -> state.store(instruction.getImmediate() + state.getRegister(instruction.getRs()), state.getRegister(instruction.getRt()));
+
+				case SLL, SRL, SRA -> state.setRegister(instruction.getRd(), opcode.operation(state.getRegister(instruction.getRt()), instruction.getImmediate()));
+
+				case ADDI, ANDI, ORI, XORI -> state.setRegister(instruction.getRt(), opcode.operation(state.getRegister(instruction.getRs()), instruction.getImmediate()));
+
+				default -> state.setRegister(instruction.getRd(), opcode.operation(state.getRegister(instruction.getRs()), state.getRegister(instruction.getRt())));
+			}
+			return instruction;
+		}
+
+	}
+
+	/**
+	 * 周期级时序引擎，{@link Machine#getEngine()}选择：按序发射的记分牌{@link Pipeline}或乱序执行的{@link Tomasulo}
+	 * <p>
+	 * 两者使用相同的指令和体系结构状态，可以在同一程序上直接比较CPI
+	 */
+	public interface Engine {
+		/**
+		 * 不输出轨迹，最多模拟cycles个周期
+		 */
+		void run(long cycles);
+
+		/**
+		 * 每周期的输出直接写入out，最多模拟cycles个周期
+		 */
+		void simulate(long cycles, Appendable out) throws IOException;
+
+		void setFilter(TraceFilter filter);
+
+		long getCycles();
+
+		//完成的指令数
+		long getRetired();
 
-		public static Boolean IF = true;
+		long getBranches();
+
+		long getMispredicted();
+
+		//转发少等的周期数
+		default long getBypassed() {
+			return 0;
+		}
+
+		//BREAK已完成
+		boolean isHalted();
+
+		String getBranchStats();
+
+		//L1缓存，没有配置时为null
+		Cache getICache();
+
+		Cache getDCache();
+
+		/**
+		 * 从给定的体系结构状态开始，各部件为空
+		 */
+		static Engine create(List<Instruction> instructions, State state, int pc, Machine machine) {
+			return machine.getEngine().equals("tomasulo") ? new Tomasulo(instructions, state, pc, machine)
+					: new Pipeline(instructions, state, pc, machine);
+		}
+	}
+
+	public static class Pipeline implements Engine {
+
+		public int PC;
+
+		public final int BASE;
+
+		private final List<Instruction> instructions;
+
+		private IFUnit ifUnit = new IFUnit();
+
+		//各队列：本周期放入的指令先暂存在队尾，周期结束时才可见
+		private final Ring<Instruction> preIssue = new Ring<>(8);
+
+		private final Ring<Buffer> preALU1 = new Ring<>(8);
+
+		//锁存器，每个单元一项，本周期写入的下一周期才可见
+		private final Ring<Buffer> preMEM = new Ring<>(2);
+
+		private final Ring<Buffer> postMEM = new Ring<>(2);
+
+		private final Ring<Buffer> preALU2 = new Ring<>(8);
+
+		private final Ring<Buffer> postALU = new Ring<>(2);
+
+		//队列深度、取指发射宽度、执行单元数，每周期都要用的参数复制到final字段
+		private final Machine machine;
+
+		private final int preIssueDepth, preAluDepth, fetchWidth, issueWidth, aluUnits, memUnits;
+
+		//分支预测器，null表示不预测：取到分支后停止取指，直到分支执行
+		private final BranchPredictor predictor;
+
+		//分支的冒险检查包括同一周期先取入的指令；只有默认配置保留原来的检查，轨迹与原来相同
+		private final boolean exact;
+
+		//IF Unit中的分支预测的下一条地址，-1表示没有推测
+		private int predicted = -1;
+
+		//preIssue末尾推测取入的指令数（包括暂存的）
+		private int speculative;
+
+		//执行的分支数、预测错误数、被清除的推测指令数
+		private long branches, mispredicted, squashed;
+
+		//把Post-ALU2和Post-MEM中的结果直接转发给发射和分支
+		private final boolean bypass;
+
+		//L1 I-cache和D-cache，null表示不模拟：取指和访存都在一个周期内完成
+		private final Cache icache, dcache;
+
+		//靠转发提前发射的指令和提前执行的分支数，每次少等一个周期
+		private long bypassed;
+
+		//分支执行后，下一周期恢复取指
+		private boolean nextIF = false;
+
+		//空闲的Buffer，指令写回后放回，稳定运行时不再创建新的Buffer
+		private final Buffer[] pool;
+
+		private int pooled;
+
+		//preIssue中各寄存器被多少条指令用到，以及由此得到的掩码，指令进出preIssue时更新
+		private final int[] preIssueUses = new int[32];
+
+		private int preIssueRegisters;
+
+		public boolean IF = true;
 
 		private class IFUnit {
 			private Instruction waiting = null;
@@ -399,65 +1304,38 @@ public class MIPSsim {
 			 * @return
 			 */
 			boolean hasHazards() {
-				if (waiting != null) {
-					boolean[] status = getPreIssueRegisterStatus();
-					Integer rs = waiting.getRs(),
-							rt = waiting.getRt();
-					switch (waiting.getOperation()) {
-						case "J" -> {
-							return false;
-						}
-						case "JR", "BLTZ", "BGTZ" -> {
-							if (hasDataHazards(rs)
-									|| hasDataHazardsWithPreIssue(rs, status))
-								return true;
-						}
-						case "BEQ" -> {
-							if (hasDataHazards(rs)
-									|| hasDataHazards(rt)
-									|| hasDataHazardsWithPreIssue(rs, status)
-									|| hasDataHazardsWithPreIssue(rt, status)) return true;
-						}
+				//分支的源寄存器被加锁，或者被preIssue中的指令用到
+				if (waiting == null) {
+					return false;
+				}
+				if (waiting.getOpcode() == Opcode.BREAK) {
+					//BREAK等之前的指令都写回后再停机，与Tomasulo按序提交到BREAK为止的结果相同
+					return exact && !isDrained();
+				}
+				int busy = unavailable() | preIssueRegisters;
+				if (exact) {
+					//同一周期先取入的指令也要算上，否则分支会读到旧值，结果随取指对齐（宽度、队列深度、预测）变化
+					for (int i = preIssue.size(), end = i + preIssue.staged() - speculative; i < end; i++) {
+						busy |= preIssue.get(i).getRegisters();
 					}
 				}
-				return false;
+				return (waiting.getReads() & busy) != 0;
 			}
 		}
 
-		private int dataAddr;
-
-		private static class Component {
-			public static Boolean IF = null;
-
-			public static Instruction waitingInstruction = null;
-
-			public static Instruction executed;
-
-			public static Queue<Instruction> preIssue = new ArrayDeque<>();
-
-			public static Queue<Buffer> preALU1 = new ArrayDeque<>();
-
-			public static Buffer preMEM = null;
-
-			public static Buffer postMEM = null;
-
-			public static Queue<Buffer> preALU2 = new ArrayDeque<>();
-
-			public static Buffer postALU = null;
-
-		}
-
 		private class Buffer {
 			Instruction instruction = null;
-			Integer operant1 = null;
-			Integer operant2 = null;
-			Integer dest = null;
-			Integer value = null;
+			int operant1;
+			int operant2;
+			int dest;
+			int value;
+			//SW要写入的值，发射时读出，之后的指令可以改写源寄存器
+			int data;
 
 			public Buffer() {
 			}
 
-			public Buffer(Instruction instruction, Integer operant1, Integer operant2, Integer value) {
+			public Buffer(Instruction instruction, int operant1, int operant2, int value) {
 				this.instruction = instruction;
 				this.operant1 = operant1;
 				this.operant2 = operant2;
@@ -473,145 +1351,594 @@ public class MIPSsim {
 				return this;
 			}
 
-			public Integer getOperant1() {
+			public int getOperant1() {
 				return operant1;
 			}
 
-			public Buffer setOperant1(Integer operant1) {
+			public Buffer setOperant1(int operant1) {
 				this.operant1 = operant1;
 				return this;
 			}
 
-			public Integer getOperant2() {
+			public int getOperant2() {
 				return operant2;
 			}
 
-			public Buffer setOperant2(Integer operant2) {
+			public Buffer setOperant2(int operant2) {
 				this.operant2 = operant2;
 				return this;
 			}
 
-			public Integer getDest() {
+			public int getDest() {
 				return dest;
 			}
 
-			public void setDest(Integer dest) {
+			public void setDest(int dest) {
 				this.dest = dest;
-				if(!"SW".equals(instruction.getOperation()))
-					registerStatus[dest] = true;
+				if (instruction.getOpcode() != Opcode.SW)
+					locked |= 1 << dest;
 			}
 
-			public Integer getValue() {
+			public int getValue() {
 				return value;
 			}
 
-			public Buffer setValue(Integer value) {
+			public Buffer setValue(int value) {
 				this.value = value;
 				return this;
 			}
 		}
 
-		private static boolean BREAK = false;
+		private boolean BREAK = false;
 
-		private boolean[] registerStatus;
+		private static final int CHECKPOINT_MAGIC = 0x4D495043, CHECKPOINT_VERSION = 9;
 
-		private boolean[] insRegisterStatus;
+		//已发射、未写回的指令的目的寄存器
+		private int locked;
 
-		private Integer[] register;
-
-		private Integer[] memory;
+		private final State state;
 
 		private int cycle;
 
-		public Pipeline(List<Instruction> memory, List<Instruction> instructions) {
-			PC = 256;
-			this.instructions = instructions;
-			preIssue = new LinkedList<>();
-			preALU1 = new LinkedList<>();
-			preALU2 = new LinkedList<>();
-			registerStatus = new boolean[32];
-			insRegisterStatus = new boolean[32];
-			BASE = this.instructions.get(0).getAddress();
-			register = new Integer[32];
-			Arrays.fill(register, 0);
-			fillData(memory);
-			this.dataAddr = memory.get(0).getAddress();
-			PC = BASE;
+		//已完成的指令数
+		private long retired;
+
+		//增量轨迹：上一周期各队列的输出，null表示还没输出过
+		private boolean delta;
+
+		private final String[] sections = new String[7];
+
+		//轨迹输出，以及已输出的字节数（全是ASCII，字符数即字节数）
+		private Appendable out;
+
+		private long written;
+
+		private TraceFilter filter = new TraceFilter();
+
+		//并行格式化的线程数，0表示在模拟线程中格式化
+		private int formatThreads = 0;
+
+		private ParallelPrinter printer;
+
+		//检查点文件和间隔的周期数
+		private Path checkpoint;
+
+		private long interval;
+
+		public Pipeline(List<Instruction> memory, List<Instruction> instructions) {
+			this(memory, instructions, new Machine());
+		}
+
+		public Pipeline(List<Instruction> memory, List<Instruction> instructions, Machine machine) {
+			this(instructions, new State(memory), instructions.get(0).getAddress(), machine);
+		}
+
+		public Pipeline(List<Instruction> instructions, State state, int pc) {
+			this(instructions, state, pc, new Machine());
+		}
+
+		/**
+		 * 从给定的体系结构状态开始，流水线各部件为空
+		 *
+		 * @param state   寄存器和数据存储器
+		 * @param pc      第一条取指的地址
+		 * @param machine 队列深度、宽度和单元数
+		 */
+		public Pipeline(List<Instruction> instructions, State state, int pc, Machine machine) {
+			this(instructions, state, pc, machine, BranchPredictor.create(machine));
+		}
+
+		private Pipeline(List<Instruction> instructions, State state, int pc, Machine machine, BranchPredictor predictor) {
+			this.instructions = instructions;
+			this.machine = machine;
+			preIssueDepth = machine.getPreIssueDepth();
+			preAluDepth = machine.getPreAluDepth();
+			fetchWidth = machine.getFetchWidth();
+			issueWidth = machine.getIssueWidth();
+			aluUnits = machine.getAluUnits();
+			memUnits = machine.getMemUnits();
+			this.predictor = predictor;
+			exact = !machine.isDefault();
+			bypass = machine.isBypass();
+			icache = Cache.create(machine, true);
+			dcache = Cache.create(machine, false);
+			pool = new Buffer[Math.max(16, 4 * (preAluDepth + memUnits + aluUnits))];
+			for (pooled = 0; pooled < pool.length; pooled++) {
+				pool[pooled] = new Buffer();
+			}
+			BASE = this.instructions.get(0).getAddress();
+			this.state = state;
+			PC = pc;
 			cycle = 1;
 
 		}
 
 		public String simulate() {
+			return simulate(Long.MAX_VALUE);
+		}
+
+		/**
+		 * 输出轨迹，最多模拟cycles个周期
+		 */
+		public String simulate(long cycles) {
 			StringBuilder builder = new StringBuilder();
-			while (!BREAK) {
-				instuctionFetch();
+			try {
+				simulate(cycles, builder);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return builder.toString();
+		}
+
+		/**
+		 * 每周期的输出直接写入out，不保留在内存中
+		 */
+		@Override
+		public void simulate(long cycles, Appendable out) throws IOException {
+			this.out = out;
+			try {
+				if (delta && sections[0] == null) {
+					StringBuilder header = new StringBuilder();
+					Printer.appendDeltaHeader(header, "pipeline", state);
+					emit(header.toString());
+				}
+				//增量轨迹依赖上一周期的输出，只能顺序格式化
+				if (formatThreads > 0 && !delta) {
+					printer = new ParallelPrinter(formatThreads);
+				}
+				for (long i = 0; i < cycles && !BREAK; i++) {
+					step();
+
+					//过滤掉的周期不格式化
+					if (filter.accepts(cycle, BREAK || i + 1 == cycles) && watches(filter)) {
+						if (printer != null) {
+							printer.publish();
+						} else {
+							String temp = delta ? printDelta() : print();
+							//System.out.println(temp);
+							emit(temp);
+						}
+					}
+					cycle++;
+					checkpoint();
+				}
+			} finally {
+				if (printer != null) {
+					try {
+						printer.close();
+					} finally {
+						printer = null;
+					}
+				}
+				this.out = null;
+			}
+		}
+
+		@Override
+		public void setFilter(TraceFilter filter) {
+			this.filter = filter;
+		}
+
+		/**
+		 * @param formatThreads 并行格式化的线程数，0表示在模拟线程中格式化
+		 */
+		public void setFormatThreads(int formatThreads) {
+			this.formatThreads = formatThreads;
+		}
+
+		/**
+		 * @return 关注的指令是否在IF Unit或preIssue中
+		 */
+		private boolean watches(TraceFilter filter) {
+			if (filter.watches(ifUnit.waiting) || filter.watches(ifUnit.executed)) {
+				return true;
+			}
+			for (int i = 0; i < preIssue.size(); i++) {
+				if (filter.watches(preIssue.get(i))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void capture(Snapshot snapshot) {
+			snapshot.cycle = cycle;
+			snapshot.waiting = ifUnit.waiting;
+			snapshot.executed = ifUnit.executed;
+			snapshot.preIssueDepth = preIssueDepth;
+			snapshot.preAluDepth = preAluDepth;
+			snapshot.preIssue = copy(preIssue, snapshot.preIssue);
+			snapshot.preIssueSize = preIssue.size();
+			snapshot.preALU1 = copyBuffers(preALU1, snapshot.preALU1);
+			snapshot.preALU1Size = preALU1.size();
+			snapshot.preMEM = copyBuffers(preMEM, snapshot.preMEM);
+			snapshot.preMEMSize = preMEM.size();
+			snapshot.postMEM = copyBuffers(postMEM, snapshot.postMEM);
+			snapshot.postMEMSize = postMEM.size();
+			snapshot.preALU2 = copyBuffers(preALU2, snapshot.preALU2);
+			snapshot.preALU2Size = preALU2.size();
+			snapshot.postALU = copyBuffers(postALU, snapshot.postALU);
+			snapshot.postALUSize = postALU.size();
+			System.arraycopy(state.getRegisters(), 0, snapshot.registers, 0, 32);
+			if (snapshot.data == null || snapshot.data.length != state.getDataSize()) {
+				snapshot.data = new int[state.getDataSize()];
+			}
+			state.copyData(snapshot.data);
+			snapshot.dataAddr = state.getDataAddr();
+		}
 
-				issue();
+		private static Instruction[] copy(Ring<Instruction> list, Instruction[] into) {
+			if (into.length < list.size()) {
+				into = new Instruction[list.size()];
+			}
+			for (int i = 0; i < list.size(); i++) {
+				into[i] = list.get(i);
+			}
+			return into;
+		}
 
-				alu();
+		private static Instruction[] copyBuffers(Ring<Buffer> buffers, Instruction[] into) {
+			if (into.length < buffers.size()) {
+				into = new Instruction[buffers.size()];
+			}
+			int i = 0;
+			for (Buffer buffer : buffers) {
+				into[i++] = buffer.instruction;
+			}
+			return into;
+		}
 
-				mem();
+		private void emit(String text) throws IOException {
+			out.append(text);
+			written += text.length();
+		}
 
-				wb();
+		/**
+		 * 不输出轨迹，直接执行到BREAK
+		 */
+		public void run() {
+			run(Long.MAX_VALUE);
+		}
 
-				String temp = print();
-				//System.out.println(temp);
-				builder.append(temp);
+		/**
+		 * 不输出轨迹，最多模拟cycles个周期
+		 */
+		@Override
+		public void run(long cycles) {
+			for (long i = 0; i < cycles && !BREAK; i++) {
+				step();
 				cycle++;
+				checkpoint();
+			}
+		}
+
+		/**
+		 * 每interval个周期把状态写入checkpoint，interval为0时不写
+		 */
+		public void setCheckpoint(Path checkpoint, long interval) {
+			this.checkpoint = checkpoint;
+			this.interval = interval;
+		}
+
+		private void checkpoint() {
+			if (interval > 0 && (cycle - 1) % interval == 0 && !BREAK) {
+				//检查点记录的输出位置必须已经落盘
+				if (printer != null) {
+					try {
+						printer.drain();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				if (out instanceof Flushable) {
+					try {
+						((Flushable) out).flush();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				save(checkpoint);
+			}
+		}
+
+		/**
+		 * 写检查点
+		 * <p>
+		 * 先写临时文件再改名，中途退出不会破坏上一个检查点
+		 */
+		public void save(Path path) {
+			Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				save(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			try {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * 检查点格式：魔数、版本、指令数、流水线配置，周期、已完成指令数、已输出字节数、PC、取指状态，分支预测状态，体系结构状态，寄存器锁，各部件中的指令，缓存状态
+		 * <p>
+		 * 只在周期结束时写，此时暂存的队列元素和下一周期的锁存器都已经提交
+		 */
+		private void save(DataOutputStream out) throws IOException {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeShort(CHECKPOINT_VERSION);
+			out.writeInt(instructions.size());
+			machine.write(out);
+			out.writeInt(cycle);
+			out.writeLong(retired);
+			out.writeLong(written);
+			out.writeInt(PC);
+			out.writeBoolean(IF);
+			out.writeBoolean(BREAK);
+			out.writeInt(predicted);
+			out.writeInt(speculative);
+			out.writeLong(branches);
+			out.writeLong(mispredicted);
+			out.writeLong(squashed);
+			out.writeLong(bypassed);
+			if (predictor != null) {
+				predictor.write(out);
+			}
+			state.write(out);
+			out.writeInt(locked);
+			writeInstruction(out, ifUnit.waiting);
+			writeInstruction(out, ifUnit.executed);
+			out.writeShort(preIssue.size());
+			for (Instruction instruction : preIssue) {
+				writeInstruction(out, instruction);
+			}
+			writeBuffers(out, preALU1);
+			writeBuffers(out, preMEM);
+			writeBuffers(out, postMEM);
+			writeBuffers(out, preALU2);
+			writeBuffers(out, postALU);
+			if (icache != null) {
+				icache.write(out);
+			}
+			if (dcache != null) {
+				dcache.write(out);
+			}
+		}
+
+		/**
+		 * 从检查点恢复，之后的输出与不中断的运行相同
+		 */
+		public static Pipeline restore(List<Instruction> instructions, Path path) throws IOException {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+				if (in.readInt() != CHECKPOINT_MAGIC || in.readShort() != CHECKPOINT_VERSION) {
+					throw new IOException("Not a checkpoint: " + path);
+				}
+				if (in.readInt() != instructions.size()) {
+					throw new IOException("Checkpoint was written for another program: " + path);
+				}
+				Machine machine = Machine.read(in);
+				int cycle = in.readInt();
+				long retired = in.readLong(), written = in.readLong();
+				int pc = in.readInt();
+				boolean fetch = in.readBoolean(), halt = in.readBoolean();
+				int predicted = in.readInt(), speculative = in.readInt();
+				long branches = in.readLong(), mispredicted = in.readLong(), squashed = in.readLong(), bypassed = in.readLong();
+				BranchPredictor predictor = BranchPredictor.create(machine);
+				if (predictor != null) {
+					predictor.read(in);
+				}
+				Pipeline pipeline = new Pipeline(instructions, State.read(in), pc, machine, predictor);
+				pipeline.predicted = predicted;
+				pipeline.speculative = speculative;
+				pipeline.branches = branches;
+				pipeline.mispredicted = mispredicted;
+				pipeline.squashed = squashed;
+				pipeline.bypassed = bypassed;
+				pipeline.cycle = cycle;
+				pipeline.retired = retired;
+				pipeline.written = written;
+				pipeline.IF = fetch;
+				pipeline.BREAK = halt;
+				pipeline.locked = in.readInt();
+				pipeline.ifUnit.waiting = pipeline.readInstruction(in);
+				pipeline.ifUnit.executed = pipeline.readInstruction(in);
+				for (int i = in.readShort(); i > 0; i--) {
+					pipeline.preIssue.stage(pipeline.readInstruction(in));
+				}
+				pipeline.commitPreIssue();
+				pipeline.readBuffers(in, pipeline.preALU1);
+				pipeline.readBuffers(in, pipeline.preMEM);
+				pipeline.readBuffers(in, pipeline.postMEM);
+				pipeline.readBuffers(in, pipeline.preALU2);
+				pipeline.readBuffers(in, pipeline.postALU);
+				if (pipeline.icache != null) {
+					pipeline.icache.read(in);
+				}
+				if (pipeline.dcache != null) {
+					pipeline.dcache.read(in);
+				}
+				return pipeline;
+			}
+		}
+
+		/**
+		 * 指令按在指令段中的下标保存，-1表示空
+		 */
+		private void writeInstruction(DataOutput out, Instruction instruction) throws IOException {
+			out.writeInt(instruction == null ? -1 : (instruction.getAddress() - BASE) / 4);
+		}
+
+		private Instruction readInstruction(DataInput in) throws IOException {
+			int index = in.readInt();
+			return index < 0 ? null : instructions.get(index);
+		}
+
+		private void writeBuffer(DataOutput out, Buffer buffer) throws IOException {
+			out.writeBoolean(buffer != null);
+			if (buffer != null) {
+				writeInstruction(out, buffer.instruction);
+				out.writeInt(buffer.operant1);
+				out.writeInt(buffer.operant2);
+				out.writeInt(buffer.dest);
+				out.writeInt(buffer.value);
+				out.writeInt(buffer.data);
+			}
+		}
+
+		private Buffer readBuffer(DataInput in) throws IOException {
+			if (!in.readBoolean()) {
+				return null;
 			}
+			Buffer buffer = acquire().setInstruction(readInstruction(in)).setOperant1(in.readInt()).setOperant2(in.readInt());
+			//寄存器锁单独恢复，这里不经过setDest
+			buffer.dest = in.readInt();
+			buffer.value = in.readInt();
+			buffer.data = in.readInt();
+			return buffer;
+		}
+
+		private void writeBuffers(DataOutput out, Ring<Buffer> buffers) throws IOException {
+			out.writeShort(buffers.size());
+			for (Buffer buffer : buffers) {
+				writeBuffer(out, buffer);
+			}
+		}
+
+		private void readBuffers(DataInput in, Ring<Buffer> buffers) throws IOException {
+			for (int i = in.readShort(); i > 0; i--) {
+				buffers.stage(readBuffer(in));
+			}
+			buffers.commit();
+		}
+
+		private Buffer acquire() {
+			return pooled > 0 ? pool[--pooled] : new Buffer();
+		}
+
+		private void release(Buffer buffer) {
+			buffer.instruction = null;
+			if (pooled < pool.length) {
+				pool[pooled++] = buffer;
+			}
+		}
+
+		private void step() {
+			instuctionFetch();
+
+			issue();
+
+			alu();
+
+			mem();
+
+			wb();
+		}
+
+		/**
+		 * 增量轨迹：只输出变化的队列、寄存器和存储字
+		 */
+		public void setDelta(boolean delta) {
+			this.delta = delta;
+			Arrays.fill(sections, null);
+			state.setTracking(delta);
+		}
+
+		private String printDelta() {
+			StringBuilder builder = new StringBuilder();
+			builder.append("C ").append(cycle).append('\n');
+			String[] current = {
+					Printer.getIfUnit(ifUnit.waiting, ifUnit.executed),
+					Printer.getPreIssue(preIssue, preIssueDepth),
+					Printer.getPreAlu1(preALU1, preAluDepth),
+					Printer.getPreMem(preMEM),
+					Printer.getPostMem(postMEM),
+					Printer.getPreAlu2(preALU2, preAluDepth),
+					Printer.getPostAlu2(postALU)};
+			for (int i = 0; i < current.length; i++) {
+				if (!current[i].equals(sections[i])) {
+					sections[i] = current[i];
+					builder.append("S ").append(i).append('\t').append(Printer.escape(current[i])).append('\n');
+				}
+			}
+			Printer.appendChanges(builder, state);
 			return builder.toString();
 		}
 
 		private String print() {
 			return Printer.getCycle(cycle) +
 					Printer.getIfUnit(ifUnit.waiting, ifUnit.executed) +
-					Printer.getPreIssue(preIssue) +
-					Printer.getPreAlu1(preALU1) +
+					Printer.getPreIssue(preIssue, preIssueDepth) +
+					Printer.getPreAlu1(preALU1, preAluDepth) +
 					Printer.getPreMem(preMEM) +
 					Printer.getPostMem(postMEM) +
-					Printer.getPreAlu2(preALU2) +
+					Printer.getPreAlu2(preALU2, preAluDepth) +
 					Printer.getPostAlu2(postALU) +
-					Printer.getRegisters(register) +
-					Printer.getData(memory, dataAddr);
+					Printer.getRegisters(state.getRegisters()) +
+					Printer.getData(state);
 		}
 
 		/**
 		 * 获取指令
 		 * <p>
-		 * 一次可以获取2条指令
+		 * 一次最多获取fetchWidth条指令（默认2条），preIssue满时停止
 		 * <p>
-		 * 当第一条指令为J Type指令时，不取第二条指令
-		 * 当第二条指令为J Type指令时，第一条指令正常取
+		 * 取到J Type指令时，它留在IF Unit，本周期不再取后面的指令
 		 * <p>
 		 * 获取到BREAK指令时，停止
 		 * <p>
 		 * 所有的J Type指令、BREAK、NOP都不会进入到preIssue
+		 * <p>
+		 * 配置了分支预测器时，J和条件分支按预测的地址继续取指，取入的指令在分支执行前不能发射
 		 */
 		public void instuctionFetch() {
 			if (IF) {
-				if (preIssue.size() + Component.preIssue.size() < 4) {
-					Instruction instruction1 = this.instructions.get(next());
-					Instruction instruction2 = null;
-					if (!isJType(instruction1)) {
-						Component.preIssue.offer(instruction1);
-						//preIssue.add(instruction1);
-						if (preIssue.size() + Component.preIssue.size() < 4) {
-							instruction2 = this.instructions.get(next());
-							if (null != instruction2 && isJType(instruction2)) {
-								//如果第二条指令是J Type，那么也留在IF Unit
-								ifUnit.waiting = instruction2;
-								//Component.waitingInstruction = instruction2;
-								IF = false;
-							} else {
-								Component.preIssue.offer(instruction2);
-								//preIssue.add(instruction2);
-							}
-						}
-					} else {
-						//如果第一条指令是跳转指令，那么直接留在IF Unit
-						ifUnit.waiting = instruction1;
-						//Component.waitingInstruction = instruction1;
+				for (int n = 0; n < fetchWidth
+						&& preIssue.size() + preIssue.staged() < preIssueDepth; n++) {
+					//推测取指时遇到第二条跳转指令（或取出程序范围）就等待分支执行
+					if (predicted >= 0 && !fetchable()) {
+						break;
+					}
+					//I-cache缺失时等待填充
+					if (icache != null && !icache.ready(PC, false, cycle, 0)) {
+						break;
+					}
+					Instruction instruction = this.instructions.get(next());
+					if (isJType(instruction)) {
+						//跳转指令留在IF Unit
+						ifUnit.waiting = instruction;
 						IF = false;
+						if (predictor != null) {
+							speculate(instruction);
+						}
+						if (predicted < 0) {
+							break;
+						}
+						continue;
+					}
+					preIssue.stage(instruction);
+					if (predicted >= 0) {
+						speculative++;
 					}
 				}
 			}
@@ -631,42 +1958,70 @@ public class MIPSsim {
 				ifUnit.executed = ifUnit.waiting;
 				ifUnit.waiting = null;
 			}
+			if (ifUnit.executed != null) {
+				retired++;
+			}
 			/*if (ifUnit.waiting != null) {
 				Component.executed = ifUnit.waiting;
 				ifUnit.waiting = null;
 			}*/
+			if (ifUnit.executed != null) {
+				switch (ifUnit.executed.getOpcode()) {
+					case J, BEQ, BLTZ, BGTZ -> branches++;
+					case JR -> branches += exact ? 1 : 0;
+					default -> {
+					}
+				}
+				if ((ifUnit.executed.getReads() & locked) != 0) {
+					bypassed++;
+				}
+			}
+			if (ifUnit.executed != null && predictor != null) {
+				boolean taken = isTaken(ifUnit.executed);
+				train(ifUnit.executed, taken);
+				if (predicted >= 0) {
+					resolve(ifUnit.executed, taken);
+					return;
+				}
+			}
 			if (ifUnit.executed != null) {
 				Integer rs = ifUnit.executed.getRs(),
 						rt = ifUnit.executed.getRt();
-				if ("J".equals(ifUnit.executed.getOperation())) {
+				if (ifUnit.executed.getOpcode() == Opcode.J) {
 					this.PC = ifUnit.executed.getTarget();
 
 					IF = true;
-				} else if (!hasDataHazards(rs)) {
-					Component.IF = true;
-					Integer value = ifUnit.executed.getValue();
-					switch (ifUnit.executed.getOperation()) {
-						case "BLTZ" -> {
-							if (register[rs] < 0) {
-								PC += Integer.parseUnsignedInt(Util.signedExtend(Util.int2String(value, 18), 32), 2);
-								Component.IF = true;
+				} else if (!isLocked(rs)) {
+					nextIF = true;
+					//分支在IF Unit等待期间不再取指，此时PC正好是分支的下一条，跳转目标在译码时已算好
+					switch (ifUnit.executed.getOpcode()) {
+						case BLTZ -> {
+							if (read(rs) < 0) {
+								PC = ifUnit.executed.getTarget();
+								nextIF = true;
 							}
 						}
-						case "BGTZ" -> {
-							if (register[rs] > 0) {
-								PC += Integer.parseUnsignedInt(Util.signedExtend(Util.int2String(value, 18), 32), 2);
-								Component.IF = true;
+						case BGTZ -> {
+							if (read(rs) > 0) {
+								PC = ifUnit.executed.getTarget();
+								nextIF = true;
 							}
 						}
-						case "BEQ" -> {
-							if (!hasDataHazards(rt)) {
-								if (register[rs].equals(register[rt])) {
-									PC += Integer.parseUnsignedInt(Util.signedExtend(Util.int2String(value, 18), 32), 2);
-									Component.IF = true;
+						case BEQ -> {
+							if (!isLocked(rt)) {
+								if (read(rs) == read(rt)) {
+									PC = ifUnit.executed.getTarget();
+									nextIF = true;
 								}
 							}
 						}
-						case "BREAK" -> {
+						case JR -> {
+							//默认配置保留原来的行为，JR不跳转
+							if (exact) {
+								PC = read(rs);
+							}
+						}
+						case BREAK -> {
 							BREAK = true;
 						}
 					}
@@ -676,25 +2031,152 @@ public class MIPSsim {
 
 		}
 
-		private boolean[] getPreIssueRegisterStatus() {
-			boolean[] status = new boolean[32];
-			preIssue.forEach(issue -> {
-				Integer rs = issue.getRs(),
-						rt = issue.getRt(),
-						rd = issue.getRd();
-				if (rs != null) status[rs] = true;
-				if (rt != null) status[rt] = true;
-				if (rd != null) status[rd] = true;
-			});
-			return status;
+		/**
+		 * 按预测的下一条地址继续取指；预测跳转但BTB未命中时不推测，与不预测时一样等待
+		 */
+		private void speculate(Instruction branch) {
+			int next;
+			switch (branch.getOpcode()) {
+				case J -> next = predictor.target(branch.getAddress());
+				case BEQ, BLTZ, BGTZ -> next = predictor.predict(branch) ? predictor.target(branch.getAddress()) : PC;
+				default -> {
+					return;
+				}
+			}
+			if (next >= 0) {
+				predicted = next;
+				PC = next;
+				IF = true;
+			}
+		}
+
+		/**
+		 * @return PC处的指令可以推测取入：在程序范围内，且不是跳转指令
+		 */
+		private boolean fetchable() {
+			int index = (PC - BASE) / 4;
+			if (PC < BASE || index >= instructions.size()) {
+				return false;
+			}
+			return switch (instructions.get(index).getOpcode()) {
+				case J, JR, BEQ, BLTZ, BGTZ, NOP, BREAK -> false;
+				default -> true;
+			};
+		}
+
+		/**
+		 * 分支的实际方向，在执行分支的周期读寄存器
+		 */
+		private boolean isTaken(Instruction branch) {
+			return switch (branch.getOpcode()) {
+				case J -> true;
+				case BEQ -> read(branch.getRs()) == read(branch.getRt());
+				case BLTZ -> read(branch.getRs()) < 0;
+				case BGTZ -> read(branch.getRs()) > 0;
+				default -> false;
+			};
+		}
+
+		private void train(Instruction branch, boolean taken) {
+			switch (branch.getOpcode()) {
+				case BEQ, BLTZ, BGTZ -> predictor.update(branch, taken);
+				case J -> {
+				}
+				default -> {
+					return;
+				}
+			}
+			if (taken) {
+				predictor.record(branch.getAddress(), branch.getTarget());
+			}
+		}
+
+		/**
+		 * 推测的分支执行：预测正确时推测的指令转为正常指令，继续取指；
+		 * 预测错误时清除推测的指令，下一周期从正确的地址取指
+		 */
+		private void resolve(Instruction branch, boolean taken) {
+			int next = taken ? branch.getTarget() : branch.getAddress() + 4;
+			if (next == predicted) {
+				for (int i = preIssue.size() + preIssue.staged() - speculative; i < preIssue.size(); i++) {
+					enter(preIssue.get(i));
+				}
+			} else {
+				mispredicted++;
+				squashed += speculative;
+				for (; speculative > 0; speculative--) {
+					preIssue.removeLast();
+				}
+				PC = next;
+				IF = false;
+				nextIF = true;
+			}
+			speculative = 0;
+			predicted = -1;
+		}
+
+		@Override
+		public long getCycles() {
+			return cycle - 1;
+		}
+
+		@Override
+		public long getRetired() {
+			return retired;
+		}
+
+		@Override
+		public long getBranches() {
+			return branches;
+		}
+
+		@Override
+		public long getMispredicted() {
+			return mispredicted;
+		}
+
+		@Override
+		public long getBypassed() {
+			return bypassed;
+		}
+
+		@Override
+		public boolean isHalted() {
+			return BREAK;
+		}
+
+		@Override
+		public Cache getICache() {
+			return icache;
+		}
+
+		@Override
+		public Cache getDCache() {
+			return dcache;
+		}
+
+		/**
+		 * 分支统计：执行的分支数、预测错误数、被清除的推测指令数
+		 */
+		@Override
+		public String getBranchStats() {
+			return String.format("branches %d, mispredicted %d (%.1f%%), squashed %d", branches, mispredicted,
+					100.0 * mispredicted / Math.max(branches, 1), squashed);
+		}
+
+		/**
+		 * 转发统计：靠转发少等的周期数（每条提前发射的指令或提前执行的分支算一个）
+		 */
+		public String getBypassStats() {
+			return String.format("bypass saved %d instruction stall cycles", bypassed);
 		}
 
 		private boolean isJType(Instruction instruction) {
-			switch (instruction.getOperation()) {
-				case "J", "JR", "BEQ", "BLTZ", "BGTZ", "NOP" -> {
+			switch (instruction.getOpcode()) {
+				case J, JR, BEQ, BLTZ, BGTZ, NOP -> {
 					return true;
 				}
-				case "BREAK" -> {
+				case BREAK -> {
 					IF = false;
 					return true;
 				}
@@ -707,7 +2189,7 @@ public class MIPSsim {
 		/**
 		 * 发射指令
 		 * <p>
-		 * 一次最多发射2条指令：1条LW/SW和1条ALU
+		 * 一次最多发射issueWidth条指令，LW/SW和ALU指令各自不超过对应的单元数（默认1条LW/SW和1条ALU）
 		 * <p>
 		 * 发射指令时，遍历preIssue
 		 * <p>
@@ -722,109 +2204,182 @@ public class MIPSsim {
 		 * 5. LW指令需要在等待先前的SW指令发射
 		 * <p>
 		 * 6. SW指令需要按照顺序发射 -> 前一条Store没有发射，其他Store就不能发射
+		 * <p>
+		 * 7. 非默认配置下SW还要等先前的LW发射
 		 */
 		public void issue() {
-			int sum = 0;
-			boolean hasStore = false;
-			Instruction loadStore = null, alu = null;
-			int storeSum = 0;
-			Arrays.fill(insRegisterStatus, false);
-			for (int i = 0; i < preIssue.size() && sum < 2; i++) {
-				//一次只能发射一条ALU和LoadStore
+			int sum = 0, loadStores = 0, alus = 0;
+			boolean hasStore = false, hasLoad = false;
+			//本周期已检查过的指令用到的寄存器，后面的指令不能与之冲突
+			int scanned = 0;
+			for (int i = 0; i < preIssue.size() && i < preIssue.size() + preIssue.staged() - speculative
+					&& sum < issueWidth; i++) {
+				//每个单元一次只能发射一条
 				Instruction issuing = preIssue.get(i);
-				if (!hasStructHazards(issuing) && !hasDataHazards(issuing)) {
+				boolean ready = false;
+				if (!hasStructHazards(issuing)) {
+					ready = !hasDataHazards(issuing, scanned);
+					scanned |= issuing.getRegisters();
+				}
+				//没有转发时这条指令至少还要等一个周期
+				boolean forwarding = ready && (issuing.getReads() & locked) != 0;
+				if (ready) {
 					//可以发射
-					Buffer buffer = new Buffer();
-					buffer.setInstruction(issuing);
-					switch (issuing.getOperation()) {
-						case "LW", "SW" -> {
-							if (!hasStore && null == loadStore) {
-								loadStore = preIssue.remove(i--);
-								buffer.setOperant1(register[issuing.getRs()])
+					switch (issuing.getOpcode()) {
+						case LW, SW -> {
+							boolean ordered = !hasStore && !(hasLoad && issuing.getOpcode() == Opcode.SW);
+							if (ordered && loadStores < memUnits && hasRoom(preALU1, memUnits)) {
+								preIssue.remove(i--);
+								leave(issuing);
+								loadStores++;
+								Buffer buffer = acquire().setInstruction(issuing);
+								buffer.setOperant1(read(issuing.getRs()))
 										.setOperant2(issuing.getOffset())
 										.setDest(issuing.getRt());
+								buffer.data = issuing.getOpcode() == Opcode.SW ? read(issuing.getRt()) : 0;
 								//preALU1.offer(buffer);
-								Component.preALU1.offer(buffer);
+								preALU1.stage(buffer);
 								sum++;
+								if (forwarding) {
+									bypassed++;
+								}
 							}
 						}
 						default -> {
-							if (null == alu) {
-								alu = preIssue.remove(i--);
+							if (alus < aluUnits && hasRoom(preALU2, aluUnits)) {
+								preIssue.remove(i--);
+								leave(issuing);
+								alus++;
 								sum++;
-								switch (issuing.getOperation()) {
-									case "SLL", "SRL", "SRA" -> {
-										buffer.setOperant1(register[issuing.getRt()])
-												.setOperant2(issuing.getShift())
+								if (forwarding) {
+									bypassed++;
+								}
+								Buffer buffer = acquire().setInstruction(issuing);
+								switch (issuing.getOpcode()) {
+									case SLL, SRL, SRA -> {
+										buffer.setOperant1(read(issuing.getRt()))
+												.setOperant2(issuing.getImmediate())
 												.setDest(issuing.getRd());
 
 									}
-									case "ADDI", "ANDI", "ORI", "XORI" -> {
-										buffer.setOperant1(register[issuing.getRs()])
+									case ADDI, ANDI, ORI, XORI -> {
+										buffer.setOperant1(read(issuing.getRs()))
 												.setOperant2(issuing.getImmediate())
 												.setDest(issuing.getRt());
 									}
 									default -> {
-										buffer.setOperant1(register[issuing.getRs()])
-												.setOperant2(register[issuing.getRt()])
+										buffer.setOperant1(read(issuing.getRs()))
+												.setOperant2(read(issuing.getRt()))
 												.setDest(issuing.getRd());
 
 									}
 								}
-								Component.preALU2.offer(buffer);
+								preALU2.stage(buffer);
 								//preALU2.offer(buffer);
 							}
 						}
 					}
 
 				} else {
-					if ("SW".equals(issuing.getOperation())) {
+					if (issuing.getOpcode() == Opcode.SW) {
 						hasStore = true;
+					} else if (issuing.getOpcode() == Opcode.LW && exact) {
+						//SW也不能越过没有发射的LW，否则LW会读到之后写入的值；默认配置保留原来的发射规则
+						hasLoad = true;
 					}
 				}
 			}
 		}
 
-		private boolean hasDataHazardsWithPreIssue(Integer id, boolean[] status) {
-			for (int i = 0; i < status.length; i++) {
-				if (id != null && status[id]) {
-					return true;
-				}
-			}
-			return false;
-		}
-
 		/**
-		 * 判断待发射指令前后是否有数据风险
-		 * <p>
-		 * 当前待发射的指令中，如果操作数与前面有RAW，需要进行等待
-		 *
-		 * @return
+		 * @return 各队列中都没有指令，包括本周期取入的
 		 */
-		private boolean hasRegisterHazards(Integer id) {
-			for (int i = 0; i < insRegisterStatus.length; i++) {
-				if (id != null && insRegisterStatus[id]) {
-					return true;
-				}
-			}
-			return false;
+		private boolean isDrained() {
+			return preIssue.isEmpty() && preIssue.staged() == 0 && preALU1.isEmpty() && preALU2.isEmpty()
+					&& preMEM.isEmpty() && postMEM.isEmpty() && postALU.isEmpty();
 		}
 
-		private void lockRegisterStatus(int id) {
-			this.registerStatus[id] = true;
+		private boolean isLocked(Integer id) {
+			return id != null && (unavailable() & (1 << id)) != 0;
 		}
 
-		private void freeInsRegisterStatus(int... argv) {
-			for (int j : argv) {
-				insRegisterStatus[j] = false;
-			}
+		/**
+		 * @return 还读不到值的寄存器：已加锁，且（开启转发时）结果不在Post-ALU2/Post-MEM中
+		 */
+		private int unavailable() {
+			return bypass ? locked & ~forwarded() : locked;
 		}
 
-		private void freeRegisterStatus(int... argv) {
-
-			for (int i : argv) {
-				registerStatus[i] = false;
+		/**
+		 * @return Post-ALU2和Post-MEM中的结果的目的寄存器，本周期写回，可以转发
+		 */
+		private int forwarded() {
+			int registers = 0;
+			for (int i = 0; i < postMEM.size(); i++) {
+				registers |= 1 << postMEM.get(i).dest;
+			}
+			for (int i = 0; i < postALU.size(); i++) {
+				registers |= 1 << postALU.get(i).dest;
 			}
+			return registers;
+		}
+
+		/**
+		 * 读寄存器，开启转发时结果还在Post-ALU2/Post-MEM中的从那里取
+		 */
+		private int read(int id) {
+			if (bypass && (locked & (1 << id)) != 0) {
+				for (int i = 0; i < postMEM.size(); i++) {
+					if (postMEM.get(i).dest == id) {
+						return postMEM.get(i).value;
+					}
+				}
+				for (int i = 0; i < postALU.size(); i++) {
+					if (postALU.get(i).dest == id) {
+						return postALU.get(i).value;
+					}
+				}
+			}
+			return state.getRegister(id);
+		}
+
+		private void freeRegisterStatus(int id) {
+			locked &= ~(1 << id);
+		}
+
+		/**
+		 * 指令进入preIssue
+		 */
+		private void enter(Instruction instruction) {
+			for (int registers = instruction.getRegisters(); registers != 0; registers &= registers - 1) {
+				int id = Integer.numberOfTrailingZeros(registers);
+				if (preIssueUses[id]++ == 0) {
+					preIssueRegisters |= 1 << id;
+				}
+			}
+		}
+
+		/**
+		 * 指令离开preIssue
+		 */
+		private void leave(Instruction instruction) {
+			for (int registers = instruction.getRegisters(); registers != 0; registers &= registers - 1) {
+				int id = Integer.numberOfTrailingZeros(registers);
+				if (--preIssueUses[id] == 0) {
+					preIssueRegisters &= ~(1 << id);
+				}
+			}
+		}
+
+		/**
+		 * 暂存的指令进入preIssue
+		 */
+		private void commitPreIssue() {
+			//推测的指令在分支预测正确后才计入
+			for (int i = preIssue.size(), end = i + preIssue.staged() - speculative; i < end; i++) {
+				enter(preIssue.get(i));
+			}
+			preIssue.commit();
 		}
 
 		/**
@@ -836,51 +2391,18 @@ public class MIPSsim {
 		 * <p>
 		 * WAW 目的寄存器被占用
 		 * <p>
-		 * 对于三寄存器的指令，需要判断rs, rt， rd是否被占用
+		 * 指令用到的寄存器（源和目的）既不能被加锁，也不能被本周期前面检查过的指令用到；
+		 * 开启转发时，源寄存器的结果已在Post-ALU2/Post-MEM中就不算RAW
 		 *
-		 * @param issuing
+		 * @param issuing 待发射的指令
+		 * @param scanned 本周期前面的指令用到的寄存器
 		 * @return
 		 */
-		private boolean hasDataHazards(Instruction issuing) {
-			Integer rs = issuing.getRs(),
-					rt = issuing.getRt(),
-					rd = issuing.getRd(),
-					sa = issuing.getShift();
-			boolean flag = false;
-			//寄存器被占用，则有数据风险
-			//首先判断该寄存器能不能发射
-			//如果registerStatus有加锁，那么就不能发射
-			switch (issuing.getOperation()) {
-				case "ADD", "SUB", "MUL", "AND", "OR", "XOR", "NOR", "SLT" -> {
-					if (hasDataHazards(rd) || hasDataHazards(rs) || hasDataHazards(rt)
-							|| hasRegisterHazards(rd) || hasRegisterHazards(rs) || hasRegisterHazards(rt)) {
-
-						flag = true;
-					}
-					insRegisterStatus[rd] = true;
-					insRegisterStatus[rs] = true;
-					insRegisterStatus[rt] = true;
-				}
-				case "SW", "LW", "ADDI", "ANDI", "ORI", "XORI" -> {
-					if (hasDataHazards(rs) || hasDataHazards(rt)
-							|| hasRegisterHazards(rs) || hasRegisterHazards(rt)) {
-						//insRegisterStatus[rt] = true;
-						//insRegisterStatus[rs] = true;
-						flag = true;
-					}
-					insRegisterStatus[rt] = true;
-					insRegisterStatus[rs] = true;
-				}
-				case "SLL", "SRL", "SRA" -> {
-					if (hasDataHazards(rt) || hasDataHazards(rd)
-							|| hasRegisterHazards(rt) || hasRegisterHazards(rd)) {
-						flag = true;
-					}
-					insRegisterStatus[rd] = true;
-					insRegisterStatus[rt] = true;
-				}
+		private boolean hasDataHazards(Instruction issuing, int scanned) {
+			if ((issuing.getRegisters() & scanned) != 0 || (issuing.getWrites() & locked) != 0) {
+				return true;
 			}
-			return flag;
+			return (issuing.getReads() & unavailable()) != 0;
 		}
 
 		/**
@@ -894,29 +2416,22 @@ public class MIPSsim {
 		 * @return 是否有结构风险
 		 */
 		private boolean hasStructHazards(Instruction instruction) {
-			switch (instruction.getOperation()) {
-				case "LW", "SW" -> {
-					return preALU1.size() > 2;
+			//ALU本周期会从队列中取走最多units条
+			switch (instruction.getOpcode()) {
+				case LW, SW -> {
+					return preALU1.size() - Math.min(memUnits, preALU1.size()) >= preAluDepth;
 				}
 				default -> {
-					return preALU2.size() > 2;
+					return preALU2.size() - Math.min(aluUnits, preALU2.size()) >= preAluDepth;
 				}
 			}
 		}
 
 		/**
-		 * 检查是否存在数据风险
-		 *
-		 * @param id 需要判断的寄存器id
-		 * @return 存在风险True
+		 * 本周期已经放入的指令也算上，队列是否还有空位
 		 */
-		private boolean hasDataHazards(Integer id) {
-			for (int i = 0; i < registerStatus.length; i++) {
-				if (id != null && registerStatus[id]) {
-					return true;
-				}
-			}
-			return false;
+		private boolean hasRoom(Ring<Buffer> queue, int units) {
+			return queue.size() + queue.staged() - Math.min(units, queue.size()) < preAluDepth;
 		}
 
 		/**
@@ -926,53 +2441,50 @@ public class MIPSsim {
 		 * ALU1操作Load和Store指令
 		 */
 		public void alu() {
-			//ALU1 一次只能从preALU1中取一条
-			if (!preALU1.isEmpty()) {
+			//ALU1 每个单元一次只能从preALU1中取一条
+			for (int i = 0; i < memUnits && !preALU1.isEmpty(); i++) {
 				Buffer loadStore = preALU1.poll();
 				//load store指令 计算地址
-				int result = Category.operationMap.get(loadStore.instruction.getOperation()).operation(loadStore.getOperant1(), loadStore.getOperant2());
+				int result = loadStore.instruction.getOpcode().operation(loadStore.getOperant1(), loadStore.getOperant2());
 				loadStore.setValue(result);
-				Component.preMEM = loadStore;
-				//preMEM = loadStore;
+				preMEM.stage(loadStore);
 			}
 
-			//ALU2 一次只能从preALU2中取一条
-			if (!preALU2.isEmpty()) {
+			//ALU2 每个单元一次只能从preALU2中取一条
+			for (int i = 0; i < aluUnits && !preALU2.isEmpty(); i++) {
 				Buffer alu = preALU2.poll();
-				//TODO: alu
-				Integer result = calculate(alu);
+				int result = calculate(alu);
 				//操作结束后将值存入postALU2
 				alu.setValue(result);
-				//postALU = alu;
-				Component.postALU = alu;
+				postALU.stage(alu);
 			}
 
 		}
 
-		private Integer calculate(Buffer buffer) {
-			String operation = buffer.getInstruction().getOperation();
-			Integer op1 = buffer.operant1,
+		private int calculate(Buffer buffer) {
+			int op1 = buffer.operant1,
 					op2 = buffer.operant2;
-			return Category.operationMap.get(operation).operation(op1, op2);
+			return buffer.getInstruction().getOpcode().operation(op1, op2);
 		}
 
 		public void mem() {
-			if (preMEM != null) {
-				Instruction instruction = preMEM.getInstruction();
-				Integer value = preMEM.getValue();
-				if (value != null) {
-					switch (instruction.getOperation()) {
-						case "LW" -> {
-							value = memory[(value - dataAddr) / 4];
-							preMEM.setValue(value);
-							//postMEM = preMEM;
-							Component.postMEM = preMEM;
-							preMEM = null;
-						}
-						case "SW" -> {
-							memory[(value - dataAddr) / 4] = register[preMEM.getDest()];
-							preMEM = null;
-						}
+			for (int i = 0; i < memUnits && !preMEM.isEmpty(); i++) {
+				Buffer buffer = preMEM.get(0);
+				int value = buffer.getValue();
+				//D-cache缺失时留在preMEM，等待填充
+				if (dcache != null && !dcache.ready(value, buffer.getInstruction().getOpcode() == Opcode.SW, cycle, 0)) {
+					break;
+				}
+				preMEM.poll();
+				switch (buffer.getInstruction().getOpcode()) {
+					case LW -> {
+						buffer.setValue(state.load(value));
+						postMEM.stage(buffer);
+					}
+					case SW -> {
+						state.store(value, buffer.data);
+						release(buffer);
+						retired++;
 					}
 				}
 			}
@@ -980,104 +2492,70 @@ public class MIPSsim {
 
 		public void wb() {
 			//TODO:释放锁的时候需要考虑取指和发射时对锁的判断
-			if (null != postMEM) {
-				int value = postMEM.getValue();
-				Integer dest = postMEM.getDest();
-				writeToRegister(dest, value);
-				freeRegisterStatus(dest);
-				//System.out.println("Free Register: " + dest);
-				postMEM = null;
-			}
-			if (null != postALU) {
-				int value = postALU.getValue();
-				Integer dest = postALU.getDest();
-				writeToRegister(dest, value);
-				freeRegisterStatus(dest);
-				//System.out.println("Free Register: " + dest);
-				postALU = null;
+			while (!postMEM.isEmpty()) {
+				writeBack(postMEM.poll());
+			}
+			while (!postALU.isEmpty()) {
+				writeBack(postALU.poll());
 			}
 			update();
 		}
 
+		/**
+		 * 周期结束：暂存的队列元素变为可见，锁存器交换
+		 */
 		private void update() {
-			if (Component.IF != null) {
-				IF = Component.IF;
-				Component.IF = null;
-			}
-			if (Component.waitingInstruction != null) {
-				this.ifUnit.waiting = Component.waitingInstruction;
-				Component.waitingInstruction = null;
-			}
-
-			if (Component.executed != null) {
-				this.ifUnit.executed = Component.executed;
-				Component.executed = null;
+			if (nextIF) {
+				IF = true;
+				nextIF = false;
 			}
 
-			while (!Component.preIssue.isEmpty()) {
-				this.preIssue.add(Component.preIssue.poll());
-			}
-
-			while (!Component.preALU1.isEmpty()) {
-				this.preALU1.offer(Component.preALU1.poll());
-			}
-			if (Component.preMEM != null) {
-				this.preMEM = Component.preMEM;
-				Component.preMEM = null;
-			}
-			if (Component.postMEM != null) {
-				this.postMEM = Component.postMEM;
-				Component.postMEM = null;
-			}
-			while (!Component.preALU2.isEmpty()) {
-				this.preALU2.offer(Component.preALU2.poll());
-			}
-
-			if (Component.postALU != null) {
-				this.postALU = Component.postALU;
-				Component.postALU = null;
-			}
+			commitPreIssue();
+			preALU1.commit();
+			preALU2.commit();
+			preMEM.commit();
+			postMEM.commit();
+			postALU.commit();
+		}
 
+		private void writeBack(Buffer buffer) {
+			int dest = buffer.getDest();
+			writeToRegister(dest, buffer.getValue());
+			freeRegisterStatus(dest);
+			release(buffer);
+			retired++;
 		}
 
 
-		private void writeToRegister(Integer id, Integer value) {
-			this.register[id] = value;
+		private void writeToRegister(int id, int value) {
+			state.setRegister(id, value);
 		}
 
-		public Integer next() {
+		public int next() {
 			int next = (PC - BASE) / 4;
 			PC += 4;
 			return next;
 		}
 
-		private void fillData(List<Instruction> data) {
-			this.memory = new Integer[data.size()];
-			for (int i = 0, len = data.size(); i < len; i++) {
-				this.memory[i] = data.get(i).getValue();
-			}
-			//System.out.println(Arrays.toString(this.data));
-		}
-
 		static class Printer {
-			public static String SEPERATE_LINE = "--------------------" + System.lineSeparator();
-			public static String CYCLE = "Cycle:%d" + System.lineSeparator() + System.lineSeparator();
-			public static String IF_UNIT = "IF Unit:" + System.lineSeparator()
+			public static final String SEPERATE_LINE = "--------------------" + System.lineSeparator();
+			public static final String CYCLE = "Cycle:%d" + System.lineSeparator() + System.lineSeparator();
+			public static final String IF_UNIT = "IF Unit:" + System.lineSeparator()
 					+ "\tWaiting Instruction:%s" + System.lineSeparator()
 					+ "\tExecuted Instruction:%s" + System.lineSeparator();
-			public static String PRE_ISSUE = "Pre-Issue Queue:" + System.lineSeparator();
+			public static final String PRE_ISSUE = "Pre-Issue Queue:" + System.lineSeparator();
 
-			public static String ENTRY = "\tEntry %d: %s" + System.lineSeparator();
+			public static final String ENTRY = "\tEntry %d: %s" + System.lineSeparator();
 
-			public static String PRE_ALU1 = "Pre-ALU1 Queue:" + System.lineSeparator();
+			public static final String PRE_ALU1 = "Pre-ALU1 Queue:" + System.lineSeparator();
 
-			public static String PRE_MEM = "Pre-MEM Queue:%s" + System.lineSeparator();
+			public static final String PRE_MEM = "Pre-MEM Queue:%s" + System.lineSeparator();
 
-			public static String POST_MEM = "Post-MEM Queue:%s" + System.lineSeparator();
+			public static final String POST_MEM = "Post-MEM Queue:%s" + System.lineSeparator();
 
-			public static String PRE_ALU2 = "Pre-ALU2 Queue:" + System.lineSeparator();
+			public static final String PRE_ALU2 = "Pre-ALU2 Queue:" + System.lineSeparator();
 
-			public static String POST_ALU2 = "Post-ALU2 Queue:%s" + System.lineSeparator() + System.lineSeparator();
+			public static final String POST_ALU2 = "Post-ALU2 Queue:%s" + System.lineSeparator() + System.lineSeparator();
 
 			public static final String REGISTERS = "Registers" + System.lineSeparator()
 					+ "R00:\t%d\t%d\t%d\t%d\t%d\t%d\t%d\t%d" + System.lineSeparator()
@@ -1087,6 +2565,52 @@ public class MIPSsim {
 					+ System.lineSeparator() + "Data" + System.lineSeparator();
 			public static final String DATA = "%d:\t%d\t%s\t%d\t%d\t%d\t%d\t%d\t%d" + System.lineSeparator();
 
+			/**
+			 * 增量轨迹的文件头：引擎类型和数据段范围
+			 * <p>
+			 * 之后每周期一行C（流水线）或I（功能模拟器），跟着变化的S队列、R寄存器、M存储字，
+			 * 第一周期输出全部内容
+			 */
+			static void appendDeltaHeader(StringBuilder builder, String engine, State state) {
+				builder.append("T ").append(engine).append('\n');
+				builder.append("D ").append(state.getDataAddr()).append(' ').append(state.getDataSize()).append('\n');
+			}
+
+			/**
+			 * 输出上次以来被改写的寄存器和存储字
+			 */
+			static void appendChanges(StringBuilder builder, State state) {
+				int dirty = state.takeDirtyRegisters();
+				while (dirty != 0) {
+					int id = Integer.numberOfTrailingZeros(dirty);
+					dirty &= dirty - 1;
+					builder.append("R ").append(id).append(' ').append(state.getRegister(id)).append('\n');
+				}
+				state.takeDirtyWords(address ->
+						builder.append("M ").append(address).append(' ').append(state.load(address)).append('\n'));
+			}
+
+			/**
+			 * 队列的输出跨行，写入增量轨迹前转义
+			 */
+			static String escape(String text) {
+				return text.replace("\\", "\\\\").replace("\r", "\\r").replace("\n", "\\n");
+			}
+
+			static String unescape(String text) {
+				StringBuilder builder = new StringBuilder(text.length());
+				for (int i = 0; i < text.length(); i++) {
+					char c = text.charAt(i);
+					if (c == '\\' && i + 1 < text.length()) {
+						char next = text.charAt(++i);
+						builder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+					} else {
+						builder.append(c);
+					}
+				}
+				return builder.toString();
+			}
+
 			public static String getCycle(int cycle) {
 				return SEPERATE_LINE + String.format(CYCLE, cycle);
 			}
@@ -1102,481 +2626,3639 @@ public class MIPSsim {
 				return String.format(IF_UNIT, "", "");
 			}
 
-			public static String getPreIssue(List<Instruction> list) {
+			public static String getPreIssue(Ring<Instruction> list, int depth) {
 				StringBuilder template = new StringBuilder(PRE_ISSUE);
 				int i = 0;
 				for (; i < list.size(); i++) {
 					template.append(String.format(ENTRY, i, list.get(i).toString()));
 				}
-				for (; i < 4; i++) {
+				for (; i < depth; i++) {
 					template.append(String.format(ENTRY, i, ""));
 				}
 				return template.toString();
 			}
 
-			public static String getPreAlu1(Deque<Buffer> deque) {
+			public static String getPreAlu1(Ring<Buffer> deque, int depth) {
 				StringBuilder template = new StringBuilder(PRE_ALU1);
 				int i = 0;
 				for (Buffer buffer : deque) {
 					template.append(String.format(ENTRY, i, buffer.instruction.toString()));
 					i++;
 				}
-				for (; i < 2; i++) {
+				for (; i < depth; i++) {
 					template.append(String.format(ENTRY, i, ""));
 				}
 				return template.toString();
 			}
 
-			public static String getPreAlu2(Deque<Buffer> deque) {
+			public static String getPreAlu2(Ring<Buffer> deque, int depth) {
 				StringBuilder template = new StringBuilder(PRE_ALU2);
 				int i = 0;
 				for (Buffer buffer : deque) {
 					template.append(String.format(ENTRY, i, buffer.instruction.toString()));
 					i++;
 				}
-				for (; i < 2; i++) {
+				for (; i < depth; i++) {
+					template.append(String.format(ENTRY, i, ""));
+				}
+				return template.toString();
+			}
+
+			public static String getPreMem(Ring<Buffer> latch) {
+				return String.format(PRE_MEM, getLatch(latch));
+			}
+
+			public static String getPostMem(Ring<Buffer> latch) {
+				return String.format(POST_MEM, getLatch(latch));
+			}
+
+			public static String getPostAlu2(Ring<Buffer> latch) {
+				return String.format(POST_ALU2, getLatch(latch));
+			}
+
+			/**
+			 * 锁存器中的指令写在同一行，每条前面一个空格
+			 */
+			private static String getLatch(Ring<Buffer> latch) {
+				StringBuilder builder = new StringBuilder();
+				for (Buffer buffer : latch) {
+					builder.append(' ').append(buffer.instruction);
+				}
+				return builder.toString();
+			}
+
+			public static String getRegisters(int[] registers) {
+				Object[] values = new Object[registers.length];
+				for (int i = 0; i < registers.length; i++) {
+					values[i] = registers[i];
+				}
+				return String.format(REGISTERS, values);
+			}
+
+			/**
+			 * 输出数据段，每行8个字
+			 */
+			public static String getData(State state) {
+				StringBuilder builder = new StringBuilder();
+				int dataAddr = state.getDataAddr();
+				for (int i = 0; i < state.getDataSize(); i += 8) {
+					int address = dataAddr + i * 4;
+					builder.append(String.format(DATA, address, state.load(address), state.load(address + 4),
+							state.load(address + 8), state.load(address + 12), state.load(address + 16),
+							state.load(address + 20), state.load(address + 24), state.load(address + 28)));
+				}
+				return builder.toString();
+			}
+
+			/**
+			 * 按快照输出一个周期，与{@link Pipeline#print()}的结果相同
+			 */
+			static String format(Snapshot snapshot) {
+				return getCycle(snapshot.cycle) +
+						getIfUnit(snapshot.waiting, snapshot.executed) +
+						getEntries(PRE_ISSUE, snapshot.preIssue, snapshot.preIssueSize, snapshot.preIssueDepth) +
+						getEntries(PRE_ALU1, snapshot.preALU1, snapshot.preALU1Size, snapshot.preAluDepth) +
+						getQueue(PRE_MEM, snapshot.preMEM, snapshot.preMEMSize) +
+						getQueue(POST_MEM, snapshot.postMEM, snapshot.postMEMSize) +
+						getEntries(PRE_ALU2, snapshot.preALU2, snapshot.preALU2Size, snapshot.preAluDepth) +
+						getQueue(POST_ALU2, snapshot.postALU, snapshot.postALUSize) +
+						getRegisters(snapshot.registers) +
+						getData(snapshot.data, snapshot.dataAddr);
+			}
+
+			private static String getEntries(String title, Instruction[] entries, int size, int min) {
+				StringBuilder template = new StringBuilder(title);
+				int i = 0;
+				for (; i < size; i++) {
+					template.append(String.format(ENTRY, i, entries[i].toString()));
+				}
+				for (; i < min; i++) {
 					template.append(String.format(ENTRY, i, ""));
 				}
 				return template.toString();
 			}
 
-			public static String getPreMem(Buffer buffer) {
-				if (buffer != null) {
-					return String.format(PRE_MEM, " " + buffer.instruction.toString());
-				}
-				return String.format(PRE_MEM, "");
-			}
+			private static String getQueue(String format, Instruction[] entries, int size) {
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < size; i++) {
+					builder.append(' ').append(entries[i]);
+				}
+				return String.format(format, builder);
+			}
+
+			/**
+			 * 按数据段的副本输出，每行8个字
+			 */
+			public static String getData(int[] data, int dataAddr) {
+				StringBuilder builder = new StringBuilder();
+				for (int i = 0; i < data.length; i += 8) {
+					builder.append(String.format(DATA, dataAddr + i * 4, data[i], word(data, i + 1), word(data, i + 2),
+							word(data, i + 3), word(data, i + 4), word(data, i + 5), word(data, i + 6), word(data, i + 7)));
+				}
+				return builder.toString();
+			}
+
+			private static int word(int[] data, int i) {
+				return i < data.length ? data[i] : 0;
+			}
+		}
+
+		/**
+		 * 一个周期的快照
+		 * <p>
+		 * 只复制指令引用和寄存器、数据段的值，格式化在工作线程中进行；对象放在环形缓冲中重复使用
+		 */
+		static final class Snapshot {
+			int cycle;
+
+			Instruction waiting, executed;
+
+			Instruction[] preIssue = new Instruction[4], preALU1 = new Instruction[2], preALU2 = new Instruction[2];
+
+			Instruction[] preMEM = new Instruction[1], postMEM = new Instruction[1], postALU = new Instruction[1];
+
+			int preIssueSize, preALU1Size, preALU2Size, preMEMSize, postMEMSize, postALUSize;
+
+			//空的队列项也要输出到配置的深度
+			int preIssueDepth, preAluDepth;
+
+			final int[] registers = new int[32];
+
+			int[] data;
+
+			int dataAddr;
+		}
+
+		/**
+		 * 并行格式化
+		 * <p>
+		 * 模拟线程把快照放入环形缓冲，工作线程并行格式化，写线程按周期顺序写出。
+		 * 信号量的许可数等于环的大小，槽位在写出后才释放，所以被复用的总是最早的槽位
+		 */
+		private final class ParallelPrinter implements Closeable {
+			private static final int RING_SIZE = 256;
+
+			private final Snapshot[] ring = new Snapshot[RING_SIZE];
+
+			private final Semaphore free = new Semaphore(RING_SIZE);
+
+			private final BlockingQueue<Future<String>> pending = new ArrayBlockingQueue<>(RING_SIZE + 1);
+
+			private final Future<String> end = CompletableFuture.completedFuture(null);
+
+			private final ExecutorService workers;
+
+			private final Thread writer;
+
+			private volatile Exception failure;
+
+			private int next;
+
+			ParallelPrinter(int threads) {
+				for (int i = 0; i < RING_SIZE; i++) {
+					ring[i] = new Snapshot();
+				}
+				workers = Executors.newFixedThreadPool(threads, runnable -> {
+					Thread thread = new Thread(runnable, "trace-format");
+					thread.setDaemon(true);
+					return thread;
+				});
+				writer = new Thread(this::write, "trace-writer");
+				writer.setDaemon(true);
+				writer.start();
+			}
+
+			/**
+			 * 复制当前周期的状态并提交格式化
+			 */
+			void publish() throws IOException {
+				check();
+				try {
+					free.acquire();
+					Snapshot snapshot = ring[next++ % RING_SIZE];
+					capture(snapshot);
+					pending.put(workers.submit(() -> Printer.format(snapshot)));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+
+			/**
+			 * 等待已提交的周期全部写出
+			 */
+			void drain() throws IOException {
+				try {
+					free.acquire(RING_SIZE);
+					free.release(RING_SIZE);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				check();
+			}
+
+			private void write() {
+				try {
+					Future<String> future;
+					while ((future = pending.take()) != end) {
+						try {
+							if (failure == null) {
+								emit(future.get());
+							}
+						} catch (ExecutionException | IOException e) {
+							failure = e;
+						} finally {
+							free.release();
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			private void check() throws IOException {
+				if (failure != null) {
+					throw new IOException("Trace formatting failed", failure);
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					pending.put(end);
+					writer.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				} finally {
+					workers.shutdown();
+				}
+				check();
+			}
+		}
+	}
+
+	/**
+	 * Tomasulo乱序执行：保留站、寄存器重命名、重排序缓冲（ROB），按序提交
+	 * <p>
+	 * 与{@link Pipeline}使用相同的指令和{@link Machine}：每周期取fetchWidth条放入preIssueDepth深的指令队列，
+	 * 每周期按序分派、提交各issueWidth条；ALU保留站由aluUnits个单元执行（分支也在这里执行），
+	 * 访存保留站由memUnits个单元执行，LW先算地址、下一周期访存，SW在提交时写存储器。
+	 * 结果在周期末广播，等待的保留站下一周期才能执行。
+	 * <p>
+	 * 不预测时取到分支就停止取指，分支执行后恢复；配置了预测器时按预测继续取指，分支执行时发现预测错误就清除更新的指令
+	 */
+	public static class Tomasulo implements Engine {
+		public static final String QUEUE = "Instruction Queue:" + System.lineSeparator();
+
+		public static final String ALU_STATIONS = "ALU Stations:" + System.lineSeparator();
+
+		public static final String MEM_STATIONS = "MEM Stations:" + System.lineSeparator();
+
+		public static final String ROB = "ROB:" + System.lineSeparator();
+
+		public int PC;
+
+		public final int BASE;
+
+		private final List<Instruction> instructions;
+
+		private final State state;
+
+		private final int queueDepth, fetchWidth, issueWidth, aluUnits, memUnits;
+
+		private final BranchPredictor predictor;
+
+		private final Cache icache, dcache;
+
+		//取指队列，本周期取入的下一周期才能分派
+		private final Ring<Instruction> queue;
+
+		//等待分支执行，不取指：不预测的分支、JR、预测跳转但BTB未命中
+		private boolean stalled;
+
+		//取到BREAK后不再取指
+		private boolean stopped;
+
+		//预测错误恢复的周期不取指
+		private boolean redirected;
+
+		//重排序缓冲，head为最老的指令
+		private final Entry[] rob;
+
+		private int head, count;
+
+		private long sequence;
+
+		//寄存器重命名表：寄存器最新的值由哪个ROB项产生，-1表示在寄存器堆中
+		private final int[] rename = new int[32];
+
+		private final Station[] aluStations, memStations;
+
+		//本周期产生的结果，周期末广播
+		private final int[] resultIndexes, resultValues;
+
+		private final long[] resultSequences;
+
+		private int results;
+
+		private int cycle = 1;
+
+		private long retired, branches, mispredicted, squashed;
+
+		//BREAK已提交
+		private boolean BREAK = false;
+
+		private TraceFilter filter = new TraceFilter();
+
+		/**
+		 * ROB的一项
+		 */
+		private static final class Entry {
+			Instruction instruction;
+
+			//分配时的序号，用来丢弃已被清除的项的结果
+			long sequence;
+
+			//目的寄存器，-1表示没有
+			int dest;
+
+			int value;
+
+			boolean ready;
+
+			//LW/SW的地址，SW的地址和数据同时确定
+			int address;
+
+			boolean addressed;
+
+			void reset(Instruction instruction, long sequence) {
+				this.instruction = instruction;
+				this.sequence = sequence;
+				this.dest = -1;
+				this.ready = false;
+				this.addressed = false;
+			}
+		}
+
+		/**
+		 * 保留站
+		 */
+		private static final class Station {
+			boolean busy;
+
+			//对应的ROB项
+			int rob;
+
+			long sequence;
+
+			Instruction instruction;
+
+			int vj, vk;
+
+			//等待的ROB项，-1表示操作数已就绪
+			int qj, qk;
+
+			//LW已算出地址，等待访存
+			boolean addressed;
+		}
+
+		public Tomasulo(List<Instruction> instructions, State state, int pc, Machine machine) {
+			this.instructions = instructions;
+			this.state = state;
+			this.BASE = instructions.get(0).getAddress();
+			this.PC = pc;
+			this.queueDepth = machine.getPreIssueDepth();
+			this.fetchWidth = machine.getFetchWidth();
+			this.issueWidth = machine.getIssueWidth();
+			this.aluUnits = machine.getAluUnits();
+			this.memUnits = machine.getMemUnits();
+			this.predictor = BranchPredictor.create(machine);
+			this.icache = Cache.create(machine, true);
+			this.dcache = Cache.create(machine, false);
+			this.queue = new Ring<>(queueDepth);
+			this.rob = new Entry[machine.getRobEntries()];
+			for (int i = 0; i < rob.length; i++) {
+				rob[i] = new Entry();
+			}
+			this.aluStations = stations(machine.getStations() * aluUnits);
+			this.memStations = stations(machine.getStations() * memUnits);
+			this.resultIndexes = new int[aluUnits + memUnits];
+			this.resultValues = new int[aluUnits + memUnits];
+			this.resultSequences = new long[aluUnits + memUnits];
+			Arrays.fill(rename, -1);
+		}
+
+		private static Station[] stations(int size) {
+			Station[] stations = new Station[size];
+			for (int i = 0; i < size; i++) {
+				stations[i] = new Station();
+			}
+			return stations;
+		}
+
+		@Override
+		public void setFilter(TraceFilter filter) {
+			this.filter = filter;
+		}
+
+		@Override
+		public void run(long cycles) {
+			for (long i = 0; i < cycles && !BREAK; i++) {
+				step();
+				cycle++;
+			}
+		}
+
+		@Override
+		public void simulate(long cycles, Appendable out) throws IOException {
+			for (long i = 0; i < cycles && !BREAK; i++) {
+				step();
+				if (filter.accepts(cycle, BREAK || i + 1 == cycles) && watches()) {
+					out.append(print());
+				}
+				cycle++;
+			}
+		}
+
+		@Override
+		public long getCycles() {
+			return cycle - 1;
+		}
+
+		@Override
+		public long getRetired() {
+			return retired;
+		}
+
+		@Override
+		public long getBranches() {
+			return branches;
+		}
+
+		@Override
+		public long getMispredicted() {
+			return mispredicted;
+		}
+
+		@Override
+		public boolean isHalted() {
+			return BREAK;
+		}
+
+		@Override
+		public Cache getICache() {
+			return icache;
+		}
+
+		@Override
+		public Cache getDCache() {
+			return dcache;
+		}
+
+		/**
+		 * 分支统计：执行的分支数、预测错误数、被清除的指令数
+		 */
+		public String getBranchStats() {
+			return String.format("branches %d, mispredicted %d (%.1f%%), squashed %d", branches, mispredicted,
+					100.0 * mispredicted / Math.max(branches, 1), squashed);
+		}
+
+		/**
+		 * 一个周期：提交、执行、分派、取指，最后广播本周期的结果
+		 */
+		private void step() {
+			commit();
+			if (BREAK) {
+				return;
+			}
+			execute();
+			dispatch();
+			fetch();
+			broadcast();
+			queue.commit();
+		}
+
+		/**
+		 * 按序提交ROB头部已完成的指令，写寄存器堆和存储器
+		 */
+		private void commit() {
+			for (int n = 0; n < issueWidth && count > 0 && rob[head].ready; n++) {
+				Entry entry = rob[head];
+				//SW在提交时写D-cache，缺失时等待填充
+				if (dcache != null && entry.instruction.getOpcode() == Opcode.SW
+						&& !dcache.ready(entry.address, true, cycle, head)) {
+					return;
+				}
+				switch (entry.instruction.getOpcode()) {
+					case SW -> state.store(entry.address, entry.value);
+					case BREAK -> BREAK = true;
+					default -> {
+						if (entry.dest >= 0) {
+							state.setRegister(entry.dest, entry.value);
+							if (rename[entry.dest] == head) {
+								rename[entry.dest] = -1;
+							}
+						}
+					}
+				}
+				entry.instruction = null;
+				head = (head + 1) % rob.length;
+				count--;
+				retired++;
+				if (BREAK) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * 每个单元从保留站中选最老的就绪指令执行
+		 */
+		private void execute() {
+			for (int n = 0; n < aluUnits; n++) {
+				Station station = oldest(aluStations);
+				if (station == null) {
+					break;
+				}
+				executeAlu(station);
+			}
+			for (int n = 0; n < memUnits; n++) {
+				Station station = oldest(memStations);
+				if (station == null) {
+					break;
+				}
+				executeMem(station);
+			}
+		}
+
+		private Station oldest(Station[] stations) {
+			Station oldest = null;
+			for (Station station : stations) {
+				if (station.busy && isReady(station) && (oldest == null || station.sequence < oldest.sequence)) {
+					oldest = station;
+				}
+			}
+			return oldest;
+		}
+
+		private boolean isReady(Station station) {
+			if (station.qj >= 0 || station.qk >= 0) {
+				return false;
+			}
+			//LW访存前，更老的SW的地址都要已知
+			return !station.addressed || isDisambiguated(station.rob);
+		}
+
+		private void executeAlu(Station station) {
+			Instruction instruction = station.instruction;
+			int index = station.rob;
+			station.busy = false;
+			int vj = station.vj, vk = station.vk;
+			switch (instruction.getOpcode()) {
+				case BEQ -> resolve(index, vj == vk);
+				case BLTZ -> resolve(index, vj < 0);
+				case BGTZ -> resolve(index, vj > 0);
+				case JR -> resolve(index, vj);
+				case SLL, SRL, SRA, ADDI, ANDI, ORI, XORI ->
+						result(index, instruction.getOpcode().operation(vj, instruction.getImmediate()));
+				default -> result(index, instruction.getOpcode().operation(vj, vk));
+			}
+		}
+
+		private void executeMem(Station station) {
+			Entry entry = rob[station.rob];
+			if (entry.instruction.getOpcode() == Opcode.SW) {
+				entry.address = station.vj + entry.instruction.getImmediate();
+				entry.value = station.vk;
+				entry.addressed = true;
+				station.busy = false;
+				result(station.rob, station.vk);
+			} else if (!station.addressed) {
+				entry.address = station.vj + entry.instruction.getImmediate();
+				entry.addressed = true;
+				station.addressed = true;
+			} else {
+				int store = forward(station.rob);
+				if (store < 0 && dcache != null && !dcache.ready(entry.address, false, cycle, station.rob)) {
+					//D-cache缺失，填充完成后再访存
+					return;
+				}
+				station.busy = false;
+				result(station.rob, store >= 0 ? rob[store].value : state.load(entry.address));
+			}
+		}
+
+		/**
+		 * @return 更老的SW都已算出地址
+		 */
+		private boolean isDisambiguated(int index) {
+			for (int i = head; i != index; i = (i + 1) % rob.length) {
+				if (rob[i].instruction.getOpcode() == Opcode.SW && !rob[i].addressed) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return 写LW同一地址的最近一条更老的SW，LW直接取它的数据；没有返回-1，从存储器读
+		 */
+		private int forward(int index) {
+			int address = rob[index].address;
+			for (int i = index; i != head; ) {
+				i = (i - 1 + rob.length) % rob.length;
+				Entry older = rob[i];
+				if (older.instruction.getOpcode() == Opcode.SW && older.address == address) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private void result(int index, int value) {
+			resultIndexes[results] = index;
+			resultValues[results] = value;
+			resultSequences[results] = rob[index].sequence;
+			results++;
+		}
+
+		private void resolve(int index, boolean taken) {
+			Instruction branch = rob[index].instruction;
+			if (predictor != null) {
+				predictor.update(branch, taken);
+				if (taken) {
+					predictor.record(branch.getAddress(), branch.getTarget());
+				}
+			}
+			resolve(index, taken ? branch.getTarget() : branch.getAddress() + 4);
+		}
+
+		/**
+		 * 分支执行：与之后取入的指令的地址比较，不一致就清除之后的指令，下一周期从正确的地址取指
+		 */
+		private void resolve(int index, int next) {
+			branches++;
+			result(index, 0);
+			int tail = (head + count - 1) % rob.length;
+			if (stalled && index == tail && queue.isEmpty()) {
+				//取指在等这条分支
+				stalled = false;
+				PC = next;
+				return;
+			}
+			int successor = index != tail ? rob[(index + 1) % rob.length].instruction.getAddress()
+					: !queue.isEmpty() ? queue.get(0).getAddress() : PC;
+			if (successor == next) {
+				return;
+			}
+			mispredicted++;
+			while (tail != index) {
+				rob[tail].instruction = null;
+				if (dcache != null) {
+					dcache.cancel(tail);
+				}
+				count--;
+				squashed++;
+				tail = (tail - 1 + rob.length) % rob.length;
+			}
+			for (Station station : aluStations) {
+				station.busy &= rob[station.rob].instruction != null && rob[station.rob].sequence == station.sequence;
+			}
+			for (Station station : memStations) {
+				station.busy &= rob[station.rob].instruction != null && rob[station.rob].sequence == station.sequence;
+			}
+			squashed += queue.size();
+			while (!queue.isEmpty()) {
+				queue.removeLast();
+			}
+			Arrays.fill(rename, -1);
+			for (int i = 0; i < count; i++) {
+				int slot = (head + i) % rob.length;
+				if (rob[slot].dest >= 0) {
+					rename[rob[slot].dest] = slot;
+				}
+			}
+			PC = next;
+			stalled = false;
+			stopped = false;
+			redirected = true;
+		}
+
+		/**
+		 * 按序把指令队列头部的指令分派到ROB和保留站，读取已就绪的操作数，并重命名目的寄存器
+		 */
+		private void dispatch() {
+			for (int n = 0; n < issueWidth && !queue.isEmpty() && count < rob.length; n++) {
+				Instruction instruction = queue.get(0);
+				Station station = null;
+				switch (instruction.getOpcode()) {
+					case J, NOP, BREAK -> {
+					}
+					case LW, SW -> {
+						station = free(memStations);
+						if (station == null) {
+							return;
+						}
+					}
+					default -> {
+						station = free(aluStations);
+						if (station == null) {
+							return;
+						}
+					}
+				}
+				queue.poll();
+				int index = (head + count) % rob.length;
+				count++;
+				Entry entry = rob[index];
+				entry.reset(instruction, ++sequence);
+				if (station == null) {
+					//J在取指时已跳转，NOP、BREAK不需要执行
+					entry.ready = true;
+					if (instruction.getOpcode() == Opcode.J) {
+						branches++;
+					}
+					continue;
+				}
+				station.busy = true;
+				station.rob = index;
+				station.sequence = entry.sequence;
+				station.instruction = instruction;
+				station.addressed = false;
+				station.qj = -1;
+				station.qk = -1;
+				switch (instruction.getOpcode()) {
+					case SLL, SRL, SRA -> {
+						station.qj = tag(instruction.getRt());
+						station.vj = value(instruction.getRt());
+					}
+					case ADDI, ANDI, ORI, XORI, LW, BLTZ, BGTZ, JR -> {
+						station.qj = tag(instruction.getRs());
+						station.vj = value(instruction.getRs());
+					}
+					default -> {
+						station.qj = tag(instruction.getRs());
+						station.vj = value(instruction.getRs());
+						station.qk = tag(instruction.getRt());
+						station.vk = value(instruction.getRt());
+					}
+				}
+				int writes = instruction.getWrites();
+				if (writes != 0) {
+					entry.dest = Integer.numberOfTrailingZeros(writes);
+					rename[entry.dest] = index;
+				}
+			}
+		}
+
+		private static Station free(Station[] stations) {
+			for (Station station : stations) {
+				if (!station.busy) {
+					return station;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return 寄存器的值还没算出来时返回产生它的ROB项，否则-1
+		 */
+		private int tag(int register) {
+			int index = rename[register];
+			return index >= 0 && !rob[index].ready ? index : -1;
+		}
+
+		private int value(int register) {
+			int index = rename[register];
+			return index >= 0 ? rob[index].value : state.getRegister(register);
+		}
+
+		/**
+		 * 取指：J直接跳转；分支按预测的地址继续，不预测时停止取指直到分支执行
+		 */
+		private void fetch() {
+			if (redirected) {
+				redirected = false;
+				return;
+			}
+			for (int n = 0; n < fetchWidth && !stalled && !stopped
+					&& queue.size() + queue.staged() < queueDepth; n++) {
+				int index = (PC - BASE) / 4;
+				if (PC < BASE || (PC & 3) != 0 || index >= instructions.size()) {
+					//错误路径取出了程序范围，等分支恢复
+					return;
+				}
+				//I-cache缺失时等待填充
+				if (icache != null && !icache.ready(PC, false, cycle, 0)) {
+					return;
+				}
+				Instruction instruction = instructions.get(index);
+				queue.stage(instruction);
+				PC += 4;
+				switch (instruction.getOpcode()) {
+					case J -> {
+						PC = instruction.getTarget();
+						return;
+					}
+					case JR -> stalled = true;
+					case BEQ, BLTZ, BGTZ -> {
+						if (predictor == null) {
+							stalled = true;
+						} else if (predictor.predict(instruction)) {
+							int target = predictor.target(instruction.getAddress());
+							if (target < 0) {
+								stalled = true;
+							} else {
+								PC = target;
+								return;
+							}
+						}
+					}
+					case BREAK -> stopped = true;
+					default -> {
+					}
+				}
+			}
+		}
+
+		/**
+		 * 周期末在CDB上广播结果：ROB项完成，等待它的保留站取得操作数
+		 */
+		private void broadcast() {
+			for (int i = 0; i < results; i++) {
+				Entry entry = rob[resultIndexes[i]];
+				if (entry.instruction == null || entry.sequence != resultSequences[i]) {
+					continue;
+				}
+				entry.value = resultValues[i];
+				entry.ready = true;
+				wake(aluStations, resultIndexes[i], resultValues[i]);
+				wake(memStations, resultIndexes[i], resultValues[i]);
+			}
+			results = 0;
+		}
+
+		private static void wake(Station[] stations, int index, int value) {
+			for (Station station : stations) {
+				if (!station.busy) {
+					continue;
+				}
+				if (station.qj == index) {
+					station.qj = -1;
+					station.vj = value;
+				}
+				if (station.qk == index) {
+					station.qk = -1;
+					station.vk = value;
+				}
+			}
+		}
+
+		/**
+		 * @return 关注的指令是否在指令队列或ROB中
+		 */
+		private boolean watches() {
+			//不限地址时，即使队列和ROB都空也输出
+			if (filter.watches(null)) {
+				return true;
+			}
+			for (int i = 0; i < queue.size(); i++) {
+				if (filter.watches(queue.get(i))) {
+					return true;
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				if (filter.watches(rob[(head + i) % rob.length].instruction)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private String print() {
+			StringBuilder builder = new StringBuilder(Pipeline.Printer.getCycle(cycle));
+			builder.append(QUEUE);
+			for (int i = 0; i < queueDepth; i++) {
+				entry(builder, i, i < queue.size() ? queue.get(i) : null);
+			}
+			builder.append(ALU_STATIONS);
+			for (int i = 0; i < aluStations.length; i++) {
+				entry(builder, i, aluStations[i].busy ? aluStations[i].instruction : null);
+			}
+			builder.append(MEM_STATIONS);
+			for (int i = 0; i < memStations.length; i++) {
+				entry(builder, i, memStations[i].busy ? memStations[i].instruction : null);
+			}
+			builder.append(ROB);
+			for (int i = 0; i < rob.length; i++) {
+				entry(builder, i, i < count ? rob[(head + i) % rob.length].instruction : null);
+			}
+			builder.append(System.lineSeparator());
+			return builder + Pipeline.Printer.getRegisters(state.getRegisters()) + Pipeline.Printer.getData(state);
+		}
+
+		private static void entry(StringBuilder builder, int i, Instruction instruction) {
+			builder.append(String.format(Pipeline.Printer.ENTRY, i, instruction == null ? "" : instruction.toString()));
+		}
+	}
+
+	//逻辑左移：
+	//算术右移：正数补0，负数补1
+	//逻辑移位:移动符号位
+	/// >>> :左边补0 逻辑右移
+	// >> :正数补0 负数补0 算术右移
+	public static void main(String[] args) {
+		MIPSsim simulator = new MIPSsim(256);
+		boolean parallel = false, listing = false, functional = false, benchmark = false, jit = true, fastForward = false;
+		//快进的指令数、停止地址、预热周期数、统计周期数
+		long skip = Long.MAX_VALUE, until = -1, warmup = 0, measure = 0;
+		//检查点文件和间隔
+		Path checkpoint = null;
+		long interval = 0;
+		boolean resume = false;
+		//增量轨迹，以及要还原的增量轨迹文件
+		boolean delta = false;
+		Path expand = null;
+		//并行格式化轨迹的线程数
+		int formatThreads = 0;
+		TraceFilter filter = new TraceFilter();
+		//批量模拟：输入目录或清单、输出目录、线程数、每个程序的周期上限
+		Path batch = null, batchOutput = Paths.get("./batch");
+		int workers = Runtime.getRuntime().availableProcessors();
+		long limit = Long.MAX_VALUE;
+		//流水线配置，以及设计空间扫描的参数网格
+		Machine machine = new Machine();
+		String sweep = null;
+		Path sampleInput = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "-p" -> parallel = true;
+				case "-d" -> listing = true;
+				case "-f" -> functional = true;
+				case "-b" -> benchmark = true;
+				case "-i" -> jit = false;
+				case "-s" -> {
+					fastForward = true;
+					skip = Long.parseLong(args[++i]);
+				}
+				case "-u" -> {
+					fastForward = true;
+					until = Long.parseLong(args[++i]);
+				}
+				case "-w" -> warmup = Long.parseLong(args[++i]);
+				case "-m" -> measure = Long.parseLong(args[++i]);
+				case "-c" -> {
+					checkpoint = Paths.get(args[++i]);
+					interval = Long.parseLong(args[++i]);
+				}
+				case "-r" -> {
+					resume = true;
+					checkpoint = Paths.get(args[++i]);
+				}
+				case "-t" -> delta = true;
+				case "-window" -> filter.setWindow(Long.parseLong(args[++i]), Long.parseLong(args[++i]));
+				case "-every" -> filter.setEvery(Long.parseLong(args[++i]));
+				case "-pc" -> filter.setPc(Long.parseLong(args[++i]));
+				case "-last" -> filter.setLast(true);
+				case "-j" -> formatThreads = Integer.parseInt(args[++i]);
+				case "-x" -> expand = Paths.get(args[++i]);
+				case "-batch" -> batch = Paths.get(args[++i]);
+				case "-o" -> batchOutput = Paths.get(args[++i]);
+				case "-workers" -> workers = Integer.parseInt(args[++i]);
+				case "-limit" -> limit = Long.parseLong(args[++i]);
+				case "-machine" -> machine = Machine.parse(args[++i]);
+				case "-sweep" -> sweep = args[++i];
+				default -> sampleInput = Paths.get(args[i]);
+			}
+		}
+		//tomasulo只在模拟线程中输出完整轨迹，不支持增量轨迹、检查点和并行格式化
+		if (machine.getEngine().equals("tomasulo") && !functional && (delta || checkpoint != null || formatThreads > 0)) {
+			System.err.println("-machine engine=tomasulo cannot be combined with -t, -c, -r or -j");
+			System.exit(2);
+		}
+		simulator.setFormatThreads(formatThreads);
+		try {
+			if (batch != null) {
+				Batch runner = new Batch(batchOutput, functional, limit, filter, machine);
+				System.out.println(runner.run(Batch.programs(batch), workers));
+				return;
+			}
+			if (expand != null) {
+				try (BufferedReader in = Files.newBufferedReader(expand);
+					 ChannelWriter out = ChannelWriter.open(Paths.get("./simulation.txt"))) {
+					TraceExpander.expand(in, out);
+				}
+				return;
+			}
+			//只有指定-d时才输出反汇编清单
+			try (ChannelWriter assembly = listing ? ChannelWriter.open(Paths.get("./disassembly.txt")) : null) {
+				if (parallel) {
+					simulator.disassembleParallel(sampleInput, assembly);
+				} else {
+					simulator.disassemble(sampleInput, assembly);
+				}
+			}
+			simulator.setFilter(filter);
+			simulator.setMachine(machine);
+			if (sweep != null) {
+				System.out.print(simulator.sweep(Machine.grid(sweep), workers, limit));
+				return;
+			}
+			if (benchmark) {
+				System.out.println(simulator.benchmark(functional, jit));
+				return;
+			}
+			Path simulated = Paths.get(delta ? "./simulation.delta" : "./simulation.txt");
+			if (resume) {
+				simulator.resume(checkpoint, interval, simulated);
+				return;
+			}
+			//轨迹边模拟边写出
+			try (ChannelWriter out = ChannelWriter.open(simulated)) {
+				if (fastForward) {
+					System.out.println(simulator.fastForward(skip, until, warmup, measure, out));
+				} else if (checkpoint != null && !functional) {
+					simulator.simulate(checkpoint, interval, out);
+				} else {
+					simulator.simulate(functional, delta, out);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
+
+/**
+ * 指令
+ * <p>
+ * 只保存与地址有关的部分，译码结果由相同编码的指令共享
+ */
+class Instruction {
+	public static final String JUMP = "%s #%s"; // op value1
+	public static final String ONE_REGISTER_OFFSET = "%s R%s, #%s";
+	public static final String TWO_REGISTER_OFFSET = "%s R%s, R%s, #%s";
+	public static final String LOAD_SAVE_WORD = "%s R%s, %s(R%s)";
+	public static final String CAL_IMMEDIATE = "%s R%s, R%s, #%s";
+	public static final String THREE_REGISTER = "%s R%s, R%s, R%s";
+
+	//地址
+	private final int address;
+
+	private final Decoded decoded;
+
+	//跳转地址：J取当前地址的高四位，分支为下一条地址加偏移
+	private final int target;
+
+	private final String instruction;
+
+	public Instruction(int address, Decoded decoded) {
+		this.address = address;
+		this.decoded = decoded;
+		if (decoded.getJumpIndex() != null) {
+			this.target = (address & 0xF0000000) | decoded.getJumpIndex();
+			this.instruction = String.format(JUMP, decoded.getOperation(), target);
+		} else {
+			Opcode opcode = decoded.getOpcode();
+			boolean branch = opcode == Opcode.BEQ || opcode == Opcode.BLTZ || opcode == Opcode.BGTZ;
+			this.target = branch ? address + 4 + decoded.getImmediate() : 0;
+			this.instruction = decoded.getInstruction();
+		}
+	}
+
+	public Decoded getDecoded() {
+		return decoded;
+	}
+
+	public Integer getCategory() {
+		return decoded.getCategory();
+	}
+
+	public int getAddress() {
+		return address;
+	}
+
+	public String getBinAddress() {
+		return Util.zeroExtend(Integer.toBinaryString(address), 32);
+	}
+
+	public String getOperation() {
+		return decoded.getOperation();
+	}
+
+	public Opcode getOpcode() {
+		return decoded.getOpcode();
+	}
+
+	public Integer getRs() {
+		return decoded.getRs();
+	}
+
+	public Integer getRt() {
+		return decoded.getRt();
+	}
+
+	public Integer getRd() {
+		return decoded.getRd();
+	}
+
+	public Integer getShift() {
+		return decoded.getShift();
+	}
+
+	public int getReads() {
+		return decoded.getReads();
+	}
+
+	public int getWrites() {
+		return decoded.getWrites();
+	}
+
+	/**
+	 * 用到的所有寄存器
+	 */
+	public int getRegisters() {
+		return decoded.getReads() | decoded.getWrites();
+	}
+
+	public Integer getValue() {
+		return decoded.getValue();
+	}
+
+	/**
+	 * 已经扩展好的立即数，可以直接参与运算
+	 */
+	public int getImmediate() {
+		return decoded.getImmediate();
+	}
+
+	public Integer getOffset() {
+		return getValue();
+	}
+
+	public int getTarget() {
+		return target;
+	}
+
+	public String getInstruction() {
+		return instruction;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + instruction + "]";
+	}
+}
+
+/**
+ * 译码结果
+ * <p>
+ * 不可变，相同编码的指令（或数据）共享同一个对象
+ */
+final class Decoded {
+	private final int word;
+
+	private final boolean data;
+
+	private final Integer category;
+
+	private final Opcode opcode;
+
+	private final Integer rs;
+
+	private final Integer rt;
+
+	private final Integer rd;
+
+	private final Integer shift;
+
+	private final Integer value;
+
+	//译码时已扩展好的立即数：移位量、符号/0扩展的立即数、分支偏移
+	private final int immediate;
+
+	//J指令的instr_index<<2，还需要拼上所在地址的高四位
+	private final Integer jumpIndex;
+
+	private final String instruction;
+
+	//读、写的寄存器，每位对应一个寄存器，流水线用来判断冲突
+	private final int reads;
+
+	private final int writes;
+
+	Decoded(int word, boolean data, Integer category, Opcode opcode, Integer rs, Integer rt, Integer rd,
+			Integer shift, Integer value, int immediate, Integer jumpIndex, String instruction) {
+		this.word = word;
+		this.data = data;
+		this.category = category;
+		this.opcode = opcode;
+		this.rs = rs;
+		this.rt = rt;
+		this.rd = rd;
+		this.shift = shift;
+		this.value = value;
+		this.immediate = immediate;
+		this.jumpIndex = jumpIndex;
+		this.instruction = instruction;
+		int reads = 0, writes = 0;
+		if (!data && opcode != null) {
+			switch (opcode) {
+				case JR, BLTZ, BGTZ -> reads = bit(rs);
+				case BEQ, SW -> reads = bit(rs) | bit(rt);
+				case LW, ADDI, ANDI, ORI, XORI -> {
+					reads = bit(rs);
+					writes = bit(rt);
+				}
+				case SLL, SRL, SRA -> {
+					reads = bit(rt);
+					writes = bit(rd);
+				}
+				case ADD, SUB, MUL, AND, OR, XOR, NOR, SLT -> {
+					reads = bit(rs) | bit(rt);
+					writes = bit(rd);
+				}
+				default -> {
+				}
+			}
+		}
+		this.reads = reads;
+		this.writes = writes;
+	}
+
+	private static int bit(Integer register) {
+		return register == null ? 0 : 1 << register;
+	}
+
+	public int getReads() {
+		return reads;
+	}
+
+	public int getWrites() {
+		return writes;
+	}
+
+	public int getWord() {
+		return word;
+	}
+
+	public boolean isData() {
+		return data;
+	}
+
+	public Integer getCategory() {
+		return category;
+	}
+
+	public Opcode getOpcode() {
+		return opcode;
+	}
+
+	public String getOperation() {
+		return opcode == null ? null : opcode.name();
+	}
+
+	public Integer getRs() {
+		return rs;
+	}
+
+	public Integer getRt() {
+		return rt;
+	}
+
+	public Integer getRd() {
+		return rd;
+	}
+
+	public Integer getShift() {
+		return shift;
+	}
+
+	public Integer getValue() {
+		return value;
+	}
+
+	public int getImmediate() {
+		return immediate;
+	}
+
+	public Integer getJumpIndex() {
+		return jumpIndex;
+	}
+
+	public String getInstruction() {
+		return instruction;
+	}
+}
+
+final class Category {
+	/*
+		 instr_index<<2            26             J target
+		 rs padding hint                          JR rs
+		 rs rt offset             5 5 16          BEQ rs, rt, offset
+		 rs 00000 offset          5 5 16          BLTZ rs, offset
+		 rs 00000 offset          5 5 16          BGTZ rs, offset
+		 BREAK
+		 rs rt offset           5 5 16          SW rt, offset(rs)
+		 rs rt offset           5 5 16          LW rt, offset(rs)
+		 00000 rt rd sa           5 5 5 5       SLL rd, rt, sa
+		 00000 rt rd sa           5 5 5 5       SRL rd, rt, sa
+		 00000 rt rd sa           5 5 5 5       SRA rd, rt, sa
+		                                          NOP
+		 rs rt rd         5 5 5        ADD rd, rs, rt
+		 rs rt rd         5 5 5        SUB rd, rs, rt
+		 rs rt rd         5 5 5        MUL rd, rs, rt
+		 rs rt rd         5 5 5        AND rd, rs, rt
+		 rs rt rd         5 5 5        OR rd, rs, rt
+		 rs rt rd         5 5 5        XOR rd, rs, rt
+		 rs rt rd         5 5 5        NOR rd, rs, rt
+		 rs rt rd         5 5 5        SLT rd, rs, rt
+
+		 rs rt immediate          5 5 16          ADDI rt, rs, immediate
+		 rs rt immediate          5 5 16          ANDI rt, rs, immediate
+		 rs rt immediate          5 5 16          ORI rt, rs, immediate
+		 rs rt immediate          5 5 16          XORI rt, rs, immediate*/
+
+	/**
+	 * @param bits 指令最高两位
+	 */
+	public static Integer getCategory(int bits) {
+		return switch (bits) {
+			case 0b01 -> 1;
+			case 0b11 -> 2;
+			default -> null;
+		};
+	}
+}
+
+/**
+ * 操作码
+ * <p>
+ * 顺序与编码一致：前12个是类别1（01），后12个是类别2（11）
+ * <p>
+ * 有运算的操作码直接带上运算，立即数在译码时已经扩展好
+ */
+enum Opcode {
+	J, JR, BEQ, BLTZ, BGTZ, BREAK,
+	SW(Integer::sum),
+	LW(Integer::sum),
+	SLL((rt, sa) -> rt << sa),//逻辑左移
+	SRL((rt, sa) -> rt >>> sa),//逻辑右移
+	SRA((rt, sa) -> rt >> sa),//算术右移
+	NOP,
+	ADD(Integer::sum),
+	SUB((x, y) -> x - y),
+	MUL((x, y) -> x * y),
+	AND((x, y) -> x & y),
+	OR((x, y) -> x | y),
+	XOR((x, y) -> x ^ y),
+	NOR((x, y) -> ~(x | y)),
+	SLT((rs, rt) -> rs < rt ? 1 : 0),
+	ADDI(Integer::sum),
+	ANDI((x, y) -> x & y),
+	ORI((x, y) -> x | y),
+	XORI((x, y) -> x ^ y);
+
+	private static final Opcode[] VALUES = values();
+
+	private final Operation operation;
+
+	Opcode() {
+		this(null);
+	}
+
+	Opcode(Operation operation) {
+		this.operation = operation;
+	}
+
+	public int operation(int x, int y) {
+		return operation.operation(x, y);
+	}
+
+	/**
+	 * @param category 指令类别 1或2
+	 * @param code     4位操作码
+	 */
+	public static Opcode of(int category, int code) {
+		if (code >= 12) {
+			throw new ArrayIndexOutOfBoundsException(code);
+		}
+		return VALUES[(category - 1) * 12 + code];
+	}
+}
+
+interface Operation {
+	int operation(int x, int y);
+}
+
+/**
+ * 体系结构状态：寄存器和数据存储器
+ * <p>
+ * 功能模拟器和流水线共用，都是基本类型数组，读写不需要装箱。
+ * <p>
+ * 存储器按4KB分页，覆盖整个32位地址空间：两级页表，地址高10位选页目录项，中间10位选页，
+ * 页在第一次写入时分配，未分配的页读出0。数据段（BREAK之后）只记录起止位置，用于输出
+ */
+final class State {
+	private static final int PAGE_BITS = 12, TABLE_BITS = 10, PAGE_WORDS = 1 << (PAGE_BITS - 2);
+
+	private final int[] register = new int[32];
+
+	private final int dataAddr;
+
+	//数据段的字数
+	private final int dataSize;
+
+	private final int[][][] directory = new int[1 << TABLE_BITS][][];
+
+	//已分配的页数
+	private int pages;
+
+	//最近访问的页，连续访问同一页时不查页表
+	private int cachedNumber = -1;
+
+	private int[] cachedPage;
+
+	//输出增量轨迹时记录改写过的寄存器和字
+	private boolean tracking;
+
+	private int dirtyRegisters;
+
+	private int[] dirtyWords = new int[8];
+
+	private int dirtyCount;
+
+	//与页表同形的位图，标记已在dirtyWords中的字：两次输出之间同一个字只记一次，dirtyWords的长度不超过改写过的不同字数
+	private final int[][][] marks = new int[1 << TABLE_BITS][][];
+
+	public State(List<Instruction> data) {
+		this.dataAddr = data == null || data.isEmpty() ? 0 : data.get(0).getAddress();
+		this.dataSize = data == null ? 0 : data.size();
+		for (int i = 0; i < dataSize; i++) {
+			store(dataAddr + i * 4, data.get(i).getValue());
+		}
+	}
+
+	State(int dataAddr, int dataSize) {
+		this.dataAddr = dataAddr;
+		this.dataSize = dataSize;
+	}
+
+	/**
+	 * 写入检查点：寄存器、数据段，以及所有已分配的页
+	 */
+	public void write(DataOutput out) throws IOException {
+		for (int value : register) {
+			out.writeInt(value);
+		}
+		out.writeInt(dataAddr);
+		out.writeInt(dataSize);
+		out.writeInt(pages);
+		for (int i = 0; i < directory.length; i++) {
+			if (directory[i] == null) {
+				continue;
+			}
+			for (int j = 0; j < directory[i].length; j++) {
+				int[] page = directory[i][j];
+				if (page != null) {
+					out.writeInt(i << TABLE_BITS | j);
+					for (int value : page) {
+						out.writeInt(value);
+					}
+				}
+			}
+		}
+	}
+
+	public static State read(DataInput in) throws IOException {
+		int[] register = new int[32];
+		for (int i = 0; i < register.length; i++) {
+			register[i] = in.readInt();
+		}
+		State state = new State(in.readInt(), in.readInt());
+		System.arraycopy(register, 0, state.register, 0, register.length);
+		for (int i = in.readInt(); i > 0; i--) {
+			int[] page = state.page(in.readInt() << PAGE_BITS, true);
+			for (int j = 0; j < page.length; j++) {
+				page[j] = in.readInt();
+			}
+		}
+		return state;
+	}
+
+	public int getRegister(int id) {
+		return register[id];
+	}
+
+	public void setRegister(int id, int value) {
+		register[id] = value;
+		dirtyRegisters |= 1 << id;
+	}
+
+	/**
+	 * 开始记录改写；开启时把所有寄存器和整个数据段标记为已改写，第一次输出完整状态
+	 */
+	public void setTracking(boolean tracking) {
+		this.tracking = tracking;
+		//丢弃之前的记录，同时清除标记
+		takeDirtyWords(address -> {
+		});
+		dirtyRegisters = tracking ? -1 : 0;
+		if (tracking) {
+			for (int i = 0; i < dataSize; i++) {
+				markWord(dataAddr + i * 4);
+			}
+		}
+	}
+
+	/**
+	 * @return 上次调用以来改写过的寄存器掩码
+	 */
+	public int takeDirtyRegisters() {
+		int dirty = dirtyRegisters;
+		dirtyRegisters = 0;
+		return dirty;
+	}
+
+	/**
+	 * 依次给出上次调用以来改写过的字地址
+	 */
+	public void takeDirtyWords(IntConsumer consumer) {
+		for (int i = 0; i < dirtyCount; i++) {
+			int address = dirtyWords[i], word = (address >>> 2) & (PAGE_WORDS - 1);
+			mark(address)[word >>> 5] &= ~(1 << word);
+			consumer.accept(address);
+		}
+		dirtyCount = 0;
+	}
+
+	private void markWord(int address) {
+		int[] mark = mark(address);
+		int word = (address >>> 2) & (PAGE_WORDS - 1);
+		if ((mark[word >>> 5] & (1 << word)) != 0) {
+			return;
+		}
+		mark[word >>> 5] |= 1 << word;
+		if (dirtyCount == dirtyWords.length) {
+			dirtyWords = Arrays.copyOf(dirtyWords, dirtyCount * 2);
+		}
+		dirtyWords[dirtyCount++] = address & ~3;
+	}
+
+	/**
+	 * @return 地址所在页的标记位图，第一次用到时分配
+	 */
+	private int[] mark(int address) {
+		int[][] table = marks[address >>> (32 - TABLE_BITS)];
+		if (table == null) {
+			table = marks[address >>> (32 - TABLE_BITS)] = new int[1 << (32 - PAGE_BITS - TABLE_BITS)][];
+		}
+		int index = (address >>> PAGE_BITS) & ((1 << (32 - PAGE_BITS - TABLE_BITS)) - 1);
+		int[] mark = table[index];
+		if (mark == null) {
+			mark = table[index] = new int[PAGE_WORDS >>> 5];
+		}
+		return mark;
+	}
+
+	/**
+	 * 读数据存储器
+	 *
+	 * @param address 字节地址
+	 */
+	public int load(int address) {
+		int[] page = address >>> PAGE_BITS == cachedNumber ? cachedPage : page(address, false);
+		return page == null ? 0 : page[(address >>> 2) & (PAGE_WORDS - 1)];
+	}
+
+	public void store(int address, int value) {
+		int[] page = address >>> PAGE_BITS == cachedNumber ? cachedPage : page(address, true);
+		page[(address >>> 2) & (PAGE_WORDS - 1)] = value;
+		if (tracking) {
+			markWord(address);
+		}
+	}
+
+	/**
+	 * 查页表
+	 *
+	 * @param allocate 页不存在时是否分配
+	 * @return 地址所在的页，不分配时可能为null
+	 */
+	private int[] page(int address, boolean allocate) {
+		int[][] table = directory[address >>> (32 - TABLE_BITS)];
+		if (table == null) {
+			if (!allocate) {
+				return null;
+			}
+			table = directory[address >>> (32 - TABLE_BITS)] = new int[1 << (32 - PAGE_BITS - TABLE_BITS)][];
+		}
+		int index = (address >>> PAGE_BITS) & ((1 << (32 - PAGE_BITS - TABLE_BITS)) - 1);
+		int[] page = table[index];
+		if (page == null) {
+			if (!allocate) {
+				return null;
+			}
+			page = table[index] = new int[PAGE_WORDS];
+			pages++;
+		}
+		cachedNumber = address >>> PAGE_BITS;
+		cachedPage = page;
+		return page;
+	}
+
+	public int[] getRegisters() {
+		return register;
+	}
+
+	public int getDataAddr() {
+		return dataAddr;
+	}
+
+	public int getDataSize() {
+		return dataSize;
+	}
+
+	/**
+	 * 复制数据段
+	 */
+	public void copyData(int[] words) {
+		for (int i = 0; i < dataSize; i++) {
+			words[i] = load(dataAddr + i * 4);
+		}
+	}
+
+	/**
+	 * @return 已分配的页数
+	 */
+	public int getPages() {
+		return pages;
+	}
+}
+
+/**
+ * 流水线的结构参数：队列深度、取指和发射宽度、执行单元数
+ * <p>
+ * 默认值就是原来的结构：preIssue 4项，preALU1/preALU2各2项，每周期取2条、发射2条（1条LW/SW和1条ALU），不做分支预测
+ */
+final class Machine {
+	private int preIssueDepth = 4;
+
+	//preALU1和preALU2的深度
+	private int preAluDepth = 2;
+
+	private int fetchWidth = 2;
+
+	private int issueWidth = 2;
+
+	//ALU2的个数，每个每周期执行一条
+	private int aluUnits = 1;
+
+	//ALU1和MEM的个数，每个每周期处理一条LW/SW
+	private int memUnits = 1;
+
+	//分支预测器：none、static、bimodal、gshare
+	private String predictor = "none";
+
+	//预测表的索引位数（gshare的全局历史也是这么多位）
+	private int predictorBits = 10;
+
+	private int btbEntries = 64;
+
+	//结果转发
+	private boolean bypass = false;
+
+	//时序引擎：scoreboard（按序发射的记分牌流水线）、tomasulo（乱序执行）
+	private String engine = "scoreboard";
+
+	//tomasulo的重排序缓冲项数
+	private int robEntries = 16;
+
+	//tomasulo每个ALU/MEM单元的保留站数
+	private int stations = 4;
+
+	//L1 I-cache：大小（字节，0表示不模拟）、相联度、行大小
+	private int icacheSize = 0;
+
+	private int icacheWays = 2;
+
+	private int icacheLine = 16;
+
+	//L1 D-cache
+	private int dcacheSize = 0;
+
+	private int dcacheWays = 2;
+
+	private int dcacheLine = 16;
+
+	//替换策略：lru、plru、random
+	private String replacement = "lru";
+
+	//D-cache写策略：back（写回、写分配）、through（写直达、不写分配）
+	private String writePolicy = "back";
+
+	//缺失时填充一行的周期数
+	private int missLatency = 10;
+
+	public int getPreIssueDepth() {
+		return preIssueDepth;
+	}
+
+	public Machine setPreIssueDepth(int preIssueDepth) {
+		this.preIssueDepth = positive("preIssue", preIssueDepth);
+		return this;
+	}
+
+	public int getPreAluDepth() {
+		return preAluDepth;
+	}
+
+	public Machine setPreAluDepth(int preAluDepth) {
+		this.preAluDepth = positive("preAlu", preAluDepth);
+		return this;
+	}
+
+	public int getFetchWidth() {
+		return fetchWidth;
+	}
+
+	public Machine setFetchWidth(int fetchWidth) {
+		this.fetchWidth = positive("fetch", fetchWidth);
+		return this;
+	}
+
+	public int getIssueWidth() {
+		return issueWidth;
+	}
+
+	public Machine setIssueWidth(int issueWidth) {
+		this.issueWidth = positive("issue", issueWidth);
+		return this;
+	}
+
+	public int getAluUnits() {
+		return aluUnits;
+	}
+
+	public Machine setAluUnits(int aluUnits) {
+		this.aluUnits = positive("alu", aluUnits);
+		return this;
+	}
+
+	public int getMemUnits() {
+		return memUnits;
+	}
+
+	public Machine setMemUnits(int memUnits) {
+		this.memUnits = positive("mem", memUnits);
+		return this;
+	}
+
+	public String getPredictor() {
+		return predictor;
+	}
+
+	public Machine setPredictor(String predictor) {
+		switch (predictor) {
+			case "none", "static", "bimodal", "gshare" -> this.predictor = predictor;
+			default -> throw new IllegalArgumentException("Unknown predictor: " + predictor);
+		}
+		return this;
+	}
+
+	public int getPredictorBits() {
+		return predictorBits;
+	}
+
+	public Machine setPredictorBits(int predictorBits) {
+		if (predictorBits <= 0 || predictorBits > 24) {
+			throw new IllegalArgumentException("bits must be in [1, 24]: " + predictorBits);
+		}
+		this.predictorBits = predictorBits;
+		return this;
+	}
+
+	public int getBtbEntries() {
+		return btbEntries;
+	}
+
+	public Machine setBtbEntries(int btbEntries) {
+		this.btbEntries = positive("btb", btbEntries);
+		return this;
+	}
+
+	public boolean isBypass() {
+		return bypass;
+	}
+
+	public Machine setBypass(boolean bypass) {
+		this.bypass = bypass;
+		return this;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public Machine setEngine(String engine) {
+		switch (engine) {
+			case "scoreboard", "tomasulo" -> this.engine = engine;
+			default -> throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+		return this;
+	}
+
+	public int getRobEntries() {
+		return robEntries;
+	}
+
+	public Machine setRobEntries(int robEntries) {
+		this.robEntries = positive("rob", robEntries);
+		return this;
+	}
+
+	public int getStations() {
+		return stations;
+	}
+
+	public Machine setStations(int stations) {
+		this.stations = positive("stations", stations);
+		return this;
+	}
+
+	public int getICacheSize() {
+		return icacheSize;
+	}
+
+	public Machine setICacheSize(int icacheSize) {
+		this.icacheSize = nonNegative("icache", icacheSize);
+		return this;
+	}
+
+	public int getICacheWays() {
+		return icacheWays;
+	}
+
+	public Machine setICacheWays(int icacheWays) {
+		this.icacheWays = positive("iways", icacheWays);
+		return this;
+	}
+
+	public int getICacheLine() {
+		return icacheLine;
+	}
+
+	public Machine setICacheLine(int icacheLine) {
+		this.icacheLine = positive("iline", icacheLine);
+		return this;
+	}
+
+	public int getDCacheSize() {
+		return dcacheSize;
+	}
+
+	public Machine setDCacheSize(int dcacheSize) {
+		this.dcacheSize = nonNegative("dcache", dcacheSize);
+		return this;
+	}
+
+	public int getDCacheWays() {
+		return dcacheWays;
+	}
+
+	public Machine setDCacheWays(int dcacheWays) {
+		this.dcacheWays = positive("dways", dcacheWays);
+		return this;
+	}
+
+	public int getDCacheLine() {
+		return dcacheLine;
+	}
+
+	public Machine setDCacheLine(int dcacheLine) {
+		this.dcacheLine = positive("dline", dcacheLine);
+		return this;
+	}
+
+	public String getReplacement() {
+		return replacement;
+	}
+
+	public Machine setReplacement(String replacement) {
+		switch (replacement) {
+			case "lru", "plru", "random" -> this.replacement = replacement;
+			default -> throw new IllegalArgumentException("Unknown replacement policy: " + replacement);
+		}
+		return this;
+	}
+
+	public String getWritePolicy() {
+		return writePolicy;
+	}
+
+	public Machine setWritePolicy(String writePolicy) {
+		switch (writePolicy) {
+			case "back", "through" -> this.writePolicy = writePolicy;
+			default -> throw new IllegalArgumentException("Unknown write policy: " + writePolicy);
+		}
+		return this;
+	}
+
+	public int getMissLatency() {
+		return missLatency;
+	}
+
+	public Machine setMissLatency(int missLatency) {
+		this.missLatency = positive("miss", missLatency);
+		return this;
+	}
+
+	/**
+	 * @return 流水线的时序参数都是默认值：保留原来的分支冒险检查，输出与原来的轨迹相同
+	 */
+	public boolean isDefault() {
+		return preIssueDepth == 4 && preAluDepth == 2 && fetchWidth == 2 && issueWidth == 2
+				&& aluUnits == 1 && memUnits == 1 && predictor.equals("none") && !bypass
+				&& icacheSize == 0 && dcacheSize == 0;
+	}
+
+	private static int nonNegative(String name, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException(name + " must not be negative: " + value);
+		}
+		return value;
+	}
+
+	private static int positive(String name, int value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException(name + " must be positive: " + value);
+		}
+		return value;
+	}
+
+	public Machine copy() {
+		return new Machine().setPreIssueDepth(preIssueDepth).setPreAluDepth(preAluDepth)
+				.setFetchWidth(fetchWidth).setIssueWidth(issueWidth)
+				.setAluUnits(aluUnits).setMemUnits(memUnits)
+				.setPredictor(predictor).setPredictorBits(predictorBits).setBtbEntries(btbEntries)
+				.setBypass(bypass).setEngine(engine).setRobEntries(robEntries).setStations(stations)
+				.setICacheSize(icacheSize).setICacheWays(icacheWays).setICacheLine(icacheLine)
+				.setDCacheSize(dcacheSize).setDCacheWays(dcacheWays).setDCacheLine(dcacheLine)
+				.setReplacement(replacement).setWritePolicy(writePolicy).setMissLatency(missLatency);
+	}
+
+	/**
+	 * 按名字设置一个参数，名字与{@link #toString()}中的相同
+	 */
+	public Machine set(String name, String value) {
+		return switch (name) {
+			case "preIssue" -> setPreIssueDepth(Integer.parseInt(value));
+			case "preAlu" -> setPreAluDepth(Integer.parseInt(value));
+			case "fetch" -> setFetchWidth(Integer.parseInt(value));
+			case "issue" -> setIssueWidth(Integer.parseInt(value));
+			case "alu" -> setAluUnits(Integer.parseInt(value));
+			case "mem" -> setMemUnits(Integer.parseInt(value));
+			case "predictor" -> setPredictor(value);
+			case "bits" -> setPredictorBits(Integer.parseInt(value));
+			case "btb" -> setBtbEntries(Integer.parseInt(value));
+			case "bypass" -> setBypass(value.equals("1") || value.equals("true"));
+			case "engine" -> setEngine(value);
+			case "rob" -> setRobEntries(Integer.parseInt(value));
+			case "stations" -> setStations(Integer.parseInt(value));
+			case "icache" -> setICacheSize(Integer.parseInt(value));
+			case "iways" -> setICacheWays(Integer.parseInt(value));
+			case "iline" -> setICacheLine(Integer.parseInt(value));
+			case "dcache" -> setDCacheSize(Integer.parseInt(value));
+			case "dways" -> setDCacheWays(Integer.parseInt(value));
+			case "dline" -> setDCacheLine(Integer.parseInt(value));
+			case "replacement" -> setReplacement(value);
+			case "write" -> setWritePolicy(value);
+			case "miss" -> setMissLatency(Integer.parseInt(value));
+			default -> throw new IllegalArgumentException("Unknown machine parameter: " + name);
+		};
+	}
+
+	/**
+	 * 参数网格，例如{@code preIssue=4/8,predictor=bimodal/gshare}；没写的参数取默认值，返回所有组合
+	 */
+	public static List<Machine> grid(String spec) {
+		List<Machine> machines = new ArrayList<>();
+		machines.add(new Machine());
+		for (String parameter : spec.split(",")) {
+			if (parameter.isBlank()) {
+				continue;
+			}
+			int equals = parameter.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected name=value: " + parameter);
+			}
+			String name = parameter.substring(0, equals).trim();
+			List<Machine> expanded = new ArrayList<>();
+			for (Machine machine : machines) {
+				for (String value : parameter.substring(equals + 1).split("/")) {
+					expanded.add(machine.copy().set(name, value.trim()));
+				}
+			}
+			machines = expanded;
+		}
+		return machines;
+	}
+
+	/**
+	 * 单个配置，例如{@code preIssue=8,fetch=4}
+	 */
+	public static Machine parse(String spec) {
+		List<Machine> machines = grid(spec);
+		if (machines.size() != 1) {
+			throw new IllegalArgumentException("Expected a single machine: " + spec);
+		}
+		return machines.get(0);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(preIssueDepth);
+		out.writeInt(preAluDepth);
+		out.writeInt(fetchWidth);
+		out.writeInt(issueWidth);
+		out.writeInt(aluUnits);
+		out.writeInt(memUnits);
+		out.writeUTF(predictor);
+		out.writeInt(predictorBits);
+		out.writeInt(btbEntries);
+		out.writeBoolean(bypass);
+		out.writeUTF(engine);
+		out.writeInt(robEntries);
+		out.writeInt(stations);
+		out.writeInt(icacheSize);
+		out.writeInt(icacheWays);
+		out.writeInt(icacheLine);
+		out.writeInt(dcacheSize);
+		out.writeInt(dcacheWays);
+		out.writeInt(dcacheLine);
+		out.writeUTF(replacement);
+		out.writeUTF(writePolicy);
+		out.writeInt(missLatency);
+	}
+
+	static Machine read(DataInput in) throws IOException {
+		return new Machine().setPreIssueDepth(in.readInt()).setPreAluDepth(in.readInt())
+				.setFetchWidth(in.readInt()).setIssueWidth(in.readInt())
+				.setAluUnits(in.readInt()).setMemUnits(in.readInt())
+				.setPredictor(in.readUTF()).setPredictorBits(in.readInt()).setBtbEntries(in.readInt())
+				.setBypass(in.readBoolean())
+				.setEngine(in.readUTF()).setRobEntries(in.readInt()).setStations(in.readInt())
+				.setICacheSize(in.readInt()).setICacheWays(in.readInt()).setICacheLine(in.readInt())
+				.setDCacheSize(in.readInt()).setDCacheWays(in.readInt()).setDCacheLine(in.readInt())
+				.setReplacement(in.readUTF()).setWritePolicy(in.readUTF()).setMissLatency(in.readInt());
+	}
+
+	@Override
+	public String toString() {
+		String machine = "preIssue=" + preIssueDepth + ",preAlu=" + preAluDepth + ",fetch=" + fetchWidth
+				+ ",issue=" + issueWidth + ",alu=" + aluUnits + ",mem=" + memUnits;
+		if (!predictor.equals("none")) {
+			machine += ",predictor=" + predictor + ",bits=" + predictorBits + ",btb=" + btbEntries;
+		}
+		if (bypass) {
+			machine += ",bypass=1";
+		}
+		if (engine.equals("tomasulo")) {
+			machine += ",engine=tomasulo,rob=" + robEntries + ",stations=" + stations;
+		}
+		if (icacheSize > 0) {
+			machine += ",icache=" + icacheSize + ",iways=" + icacheWays + ",iline=" + icacheLine;
+		}
+		if (dcacheSize > 0) {
+			machine += ",dcache=" + dcacheSize + ",dways=" + dcacheWays + ",dline=" + dcacheLine + ",write=" + writePolicy;
+		}
+		if (icacheSize > 0 || dcacheSize > 0) {
+			machine += ",replacement=" + replacement + ",miss=" + missLatency;
+		}
+		return machine;
+	}
+}
+
+/**
+ * 分支预测：条件分支的方向预测器和BTB
+ * <p>
+ * 流水线在IF Unit取到分支时查询，分支执行后训练。同一时刻最多一条未执行的分支，所以不需要推测更新历史。
+ * {@link MIPSsim.Tomasulo}中可以有多条未执行的分支，历史按分支执行的顺序更新，是近似
+ */
+abstract class BranchPredictor {
+	//BTB：直接映射，标签是完整地址，-1表示空
+	private final int[] tags;
+
+	private final int[] targets;
+
+	BranchPredictor(int btbEntries) {
+		this.tags = new int[btbEntries];
+		this.targets = new int[btbEntries];
+		Arrays.fill(tags, -1);
+	}
+
+	/**
+	 * @return 按配置创建的预测器，none返回null
+	 */
+	static BranchPredictor create(Machine machine) {
+		return switch (machine.getPredictor()) {
+			case "static" -> new Static(machine.getBtbEntries());
+			case "bimodal" -> new Bimodal(machine.getBtbEntries(), machine.getPredictorBits());
+			case "gshare" -> new Gshare(machine.getBtbEntries(), machine.getPredictorBits());
+			default -> null;
+		};
+	}
+
+	/**
+	 * @return 条件分支是否跳转
+	 */
+	abstract boolean predict(Instruction branch);
+
+	/**
+	 * 用条件分支的实际方向训练
+	 */
+	abstract void update(Instruction branch, boolean taken);
+
+	/**
+	 * @return BTB中记录的跳转地址，未命中返回-1
+	 */
+	int target(int pc) {
+		int slot = slot(pc);
+		return tags[slot] == pc ? targets[slot] : -1;
+	}
+
+	/**
+	 * 跳转的分支写入BTB
+	 */
+	void record(int pc, int target) {
+		int slot = slot(pc);
+		tags[slot] = pc;
+		targets[slot] = target;
+	}
+
+	private int slot(int pc) {
+		return Integer.remainderUnsigned(pc >>> 2, tags.length);
+	}
+
+	void write(DataOutput out) throws IOException {
+		for (int i = 0; i < tags.length; i++) {
+			out.writeInt(tags[i]);
+			out.writeInt(targets[i]);
+		}
+	}
+
+	void read(DataInput in) throws IOException {
+		for (int i = 0; i < tags.length; i++) {
+			tags[i] = in.readInt();
+			targets[i] = in.readInt();
+		}
+	}
+
+	/**
+	 * 静态预测：向后跳转（循环）预测跳转，向前不跳转
+	 */
+	static final class Static extends BranchPredictor {
+		Static(int btbEntries) {
+			super(btbEntries);
+		}
+
+		@Override
+		boolean predict(Instruction branch) {
+			return branch.getTarget() <= branch.getAddress();
+		}
+
+		@Override
+		void update(Instruction branch, boolean taken) {
+		}
+	}
+
+	/**
+	 * 按地址索引的2位饱和计数器
+	 */
+	static class Bimodal extends BranchPredictor {
+		//0、1预测不跳转，2、3预测跳转，初始为弱不跳转
+		private final byte[] counters;
+
+		protected final int mask;
+
+		Bimodal(int btbEntries, int bits) {
+			super(btbEntries);
+			this.counters = new byte[1 << bits];
+			this.mask = counters.length - 1;
+			Arrays.fill(counters, (byte) 1);
+		}
+
+		protected int index(int pc) {
+			return (pc >>> 2) & mask;
+		}
+
+		@Override
+		boolean predict(Instruction branch) {
+			return counters[index(branch.getAddress())] >= 2;
+		}
+
+		@Override
+		void update(Instruction branch, boolean taken) {
+			int index = index(branch.getAddress());
+			if (taken && counters[index] < 3) {
+				counters[index]++;
+			} else if (!taken && counters[index] > 0) {
+				counters[index]--;
+			}
+		}
+
+		@Override
+		void write(DataOutput out) throws IOException {
+			super.write(out);
+			out.write(counters);
+		}
+
+		@Override
+		void read(DataInput in) throws IOException {
+			super.read(in);
+			in.readFully(counters);
+		}
+	}
+
+	/**
+	 * 全局历史与地址异或后索引计数器
+	 */
+	static final class Gshare extends Bimodal {
+		private int history;
+
+		Gshare(int btbEntries, int bits) {
+			super(btbEntries, bits);
+		}
+
+		@Override
+		protected int index(int pc) {
+			return ((pc >>> 2) ^ history) & mask;
+		}
+
+		@Override
+		void update(Instruction branch, boolean taken) {
+			super.update(branch, taken);
+			history = ((history << 1) | (taken ? 1 : 0)) & mask;
+		}
+
+		@Override
+		void write(DataOutput out) throws IOException {
+			super.write(out);
+			out.writeInt(history);
+		}
+
+		@Override
+		void read(DataInput in) throws IOException {
+			super.read(in);
+			history = in.readInt();
+		}
+	}
+}
+
+/**
+ * L1缓存的时序模型：组相联，只记录标签和脏位，数据仍在{@link State}中
+ * <p>
+ * 阻塞式：同一时刻最多一个未完成的缺失，填充期间对这个缓存的访问都等待。
+ * 写回缓存写缺失时分配，替换脏行多等一次缺失延迟；写直达缓存写缺失时不分配，由写缓冲吸收，不等待
+ */
+final class Cache {
+	private final String name;
+
+	private final int size, ways, lineSize;
+
+	//行内偏移的位数
+	private final int lineBits;
+
+	private final int sets;
+
+	//lru、plru、random
+	private final String replacement;
+
+	private final boolean writeBack;
+
+	//缺失时填充一行的周期数
+	private final int latency;
+
+	//每组ways项，标签是行地址（address >>> lineBits），-1表示空
+	private final int[] tags;
+
+	private final boolean[] dirty;
+
+	//LRU：最近一次访问的时刻
+	private final long[] used;
+
+	//PLRU：每组一棵ways-1位的二叉树，位为1表示替换右半边
+	private final int[] trees;
+
+	private long clock;
+
+	//随机替换用的xorshift状态，固定种子，结果可重复
+	private int seed = 0x2545F491;
+
+	//填充完成的周期
+	private long busyUntil;
+
+	//每个请求者正在填充的行，-1表示没有；其它请求者的访问不影响，填充完成后的重试不再计数
+	private int[] pending = {-1};
+
+	private long reads, writes, readMisses, writeMisses, writebacks, stalls;
+
+	Cache(String name, int size, int ways, int lineSize, String replacement, boolean writeBack, int latency) {
+		if (Integer.bitCount(lineSize) != 1 || lineSize < 4) {
+			throw new IllegalArgumentException(name + " line size must be a power of two >= 4: " + lineSize);
+		}
+		if (Integer.bitCount(ways) != 1 || ways > 32) {
+			throw new IllegalArgumentException(name + " ways must be a power of two <= 32: " + ways);
+		}
+		if (size % (ways * lineSize) != 0 || Integer.bitCount(size / (ways * lineSize)) != 1) {
+			throw new IllegalArgumentException(name + " size must be a power-of-two multiple of ways * line: " + size);
+		}
+		this.name = name;
+		this.size = size;
+		this.ways = ways;
+		this.lineSize = lineSize;
+		this.lineBits = Integer.numberOfTrailingZeros(lineSize);
+		this.sets = size / (ways * lineSize);
+		this.replacement = replacement;
+		this.writeBack = writeBack;
+		this.latency = latency;
+		this.tags = new int[sets * ways];
+		this.dirty = new boolean[sets * ways];
+		this.used = new long[sets * ways];
+		this.trees = new int[sets];
+		Arrays.fill(tags, -1);
+	}
+
+	/**
+	 * @param instruction true创建I-cache，false创建D-cache
+	 * @return 按配置创建的缓存，大小为0返回null
+	 */
+	static Cache create(Machine machine, boolean instruction) {
+		if (instruction) {
+			return machine.getICacheSize() == 0 ? null : new Cache("icache", machine.getICacheSize(),
+					machine.getICacheWays(), machine.getICacheLine(), machine.getReplacement(), true, machine.getMissLatency());
+		}
+		return machine.getDCacheSize() == 0 ? null : new Cache("dcache", machine.getDCacheSize(),
+				machine.getDCacheWays(), machine.getDCacheLine(), machine.getReplacement(),
+				machine.getWritePolicy().equals("back"), machine.getMissLatency());
+	}
+
+	/**
+	 * 在now周期访问address，缺失时开始填充
+	 *
+	 * @param requester 发起访问的一方（流水线为0，Tomasulo为ROB项的下标），填充完成前可以有其它请求者访问
+	 * @return 可以继续访存；false表示本周期等待，之后的周期用同样的地址重试，填充完成时返回true
+	 */
+	boolean ready(int address, boolean write, long now, int requester) {
+		if (now < busyUntil) {
+			return false;
+		}
+		if (requester >= pending.length) {
+			int length = pending.length;
+			pending = Arrays.copyOf(pending, requester + 1);
+			Arrays.fill(pending, length, pending.length, -1);
+		}
+		int line = address >>> lineBits;
+		if (line == pending[requester]) {
+			//填充完成，这次访问已经计入缺失
+			pending[requester] = -1;
+			return true;
+		}
+		//同一请求者换了地址，原来的访问已经放弃
+		pending[requester] = -1;
+		int cost = access(line, write);
+		if (cost == 0) {
+			return true;
+		}
+		pending[requester] = line;
+		busyUntil = now + cost;
+		stalls += cost;
+		return false;
+	}
+
+	/**
+	 * 请求者被清除，不再重试它的访问
+	 */
+	void cancel(int requester) {
+		if (requester < pending.length) {
+			pending[requester] = -1;
+		}
+	}
+
+	/**
+	 * 查找并更新标签
+	 *
+	 * @return 需要等待的周期数，命中为0
+	 */
+	private int access(int line, boolean write) {
+		clock++;
+		if (write) {
+			writes++;
+		} else {
+			reads++;
+		}
+		int base = (line & (sets - 1)) * ways;
+		for (int way = 0; way < ways; way++) {
+			if (tags[base + way] == line) {
+				touch(base, way);
+				dirty[base + way] |= write && writeBack;
+				return 0;
+			}
+		}
+		if (write) {
+			writeMisses++;
+			if (!writeBack) {
+				return 0;
+			}
+		} else {
+			readMisses++;
+		}
+		int way = victim(base);
+		int cost = latency;
+		if (dirty[base + way]) {
+			writebacks++;
+			cost += latency;
+		}
+		tags[base + way] = line;
+		dirty[base + way] = write;
+		touch(base, way);
+		return cost;
+	}
+
+	private void touch(int base, int way) {
+		used[base + way] = clock;
+		if (ways > 1) {
+			//从根到叶，每层的位指向另一半
+			int set = base / ways, node = 1, tree = trees[set];
+			for (int half = ways >> 1; half > 0; half >>= 1) {
+				boolean right = (way & half) != 0;
+				tree = right ? tree & ~(1 << node) : tree | (1 << node);
+				node = node * 2 + (right ? 1 : 0);
+			}
+			trees[set] = tree;
+		}
+	}
+
+	/**
+	 * 优先替换空行，否则按替换策略选一路
+	 */
+	private int victim(int base) {
+		for (int way = 0; way < ways; way++) {
+			if (tags[base + way] < 0) {
+				return way;
+			}
+		}
+		switch (replacement) {
+			case "plru" -> {
+				int tree = trees[base / ways], node = 1, way = 0;
+				for (int half = ways >> 1; half > 0; half >>= 1) {
+					boolean right = (tree & (1 << node)) != 0;
+					way |= right ? half : 0;
+					node = node * 2 + (right ? 1 : 0);
+				}
+				return way;
+			}
+			case "random" -> {
+				seed ^= seed << 13;
+				seed ^= seed >>> 17;
+				seed ^= seed << 5;
+				return (seed & 0x7FFFFFFF) % ways;
+			}
+			default -> {
+				int oldest = 0;
+				for (int way = 1; way < ways; way++) {
+					if (used[base + way] < used[base + oldest]) {
+						oldest = way;
+					}
+				}
+				return oldest;
+			}
+		}
+	}
+
+	public long getMisses() {
+		return readMisses + writeMisses;
+	}
+
+	void write(DataOutput out) throws IOException {
+		for (int i = 0; i < tags.length; i++) {
+			out.writeInt(tags[i]);
+			out.writeBoolean(dirty[i]);
+			out.writeLong(used[i]);
+		}
+		for (int tree : trees) {
+			out.writeInt(tree);
+		}
+		out.writeLong(clock);
+		out.writeInt(seed);
+		out.writeLong(busyUntil);
+		out.writeInt(pending.length);
+		for (int line : pending) {
+			out.writeInt(line);
+		}
+		out.writeLong(reads);
+		out.writeLong(writes);
+		out.writeLong(readMisses);
+		out.writeLong(writeMisses);
+		out.writeLong(writebacks);
+		out.writeLong(stalls);
+	}
+
+	void read(DataInput in) throws IOException {
+		for (int i = 0; i < tags.length; i++) {
+			tags[i] = in.readInt();
+			dirty[i] = in.readBoolean();
+			used[i] = in.readLong();
+		}
+		for (int i = 0; i < trees.length; i++) {
+			trees[i] = in.readInt();
+		}
+		clock = in.readLong();
+		seed = in.readInt();
+		busyUntil = in.readLong();
+		pending = new int[in.readInt()];
+		for (int i = 0; i < pending.length; i++) {
+			pending[i] = in.readInt();
+		}
+		reads = in.readLong();
+		writes = in.readLong();
+		readMisses = in.readLong();
+		writeMisses = in.readLong();
+		writebacks = in.readLong();
+		stalls = in.readLong();
+	}
+
+	/**
+	 * 配置和命中/缺失统计
+	 */
+	@Override
+	public String toString() {
+		long accesses = reads + writes, misses = getMisses();
+		String stats = String.format("%s %dB %d-way %dB-line %s: %d accesses, %d hits, %d misses (%.2f%%), %d stall cycles",
+				name, size, ways, lineSize, replacement, accesses, accesses - misses, misses,
+				100.0 * misses / Math.max(accesses, 1), stalls);
+		if (writes > 0) {
+			stats += String.format(", %d writes, %d write misses, %s", writes, writeMisses,
+					writeBack ? writebacks + " writebacks" : "write-through");
+		}
+		return stats;
+	}
+}
+
+/**
+ * 轨迹过滤：周期区间、每N个周期、只看某条指令、只输出最后一个周期
+ * <p>
+ * 条件同时满足才输出；没有被选中的周期不经过Printer
+ */
+final class TraceFilter {
+	private long from = 1;
+
+	private long to = Long.MAX_VALUE;
+
+	private long every = 1;
+
+	//关注的指令地址，-1表示不限
+	private long pc = -1;
+
+	private boolean last = false;
+
+	/**
+	 * 只输出[from, to]内的周期
+	 */
+	public TraceFilter setWindow(long from, long to) {
+		this.from = from;
+		this.to = to;
+		return this;
+	}
+
+	/**
+	 * 从from开始每every个周期输出一次
+	 */
+	public TraceFilter setEvery(long every) {
+		this.every = every;
+		return this;
+	}
+
+	/**
+	 * 流水线：只输出该地址的指令在IF Unit或preIssue中的周期；功能模拟器：只输出执行该指令的周期
+	 */
+	public TraceFilter setPc(long pc) {
+		this.pc = pc;
+		return this;
+	}
+
+	/**
+	 * 只输出最后一个周期
+	 */
+	public TraceFilter setLast(boolean last) {
+		this.last = last;
+		return this;
+	}
+
+	/**
+	 * @param cycle 周期
+	 * @param end   是否是最后一个周期
+	 */
+	public boolean accepts(long cycle, boolean end) {
+		if (last && !end) {
+			return false;
+		}
+		return cycle >= from && cycle <= to && (cycle - from) % every == 0;
+	}
+
+	public boolean watches(Instruction instruction) {
+		return pc < 0 || instruction != null && instruction.getAddress() == pc;
+	}
+}
+
+/**
+ * 定长环形队列
+ * <p>
+ * stage放入的元素排在队尾，commit之前对size、get、poll不可见，代替流水线各级之间的暂存队列；
+ * 容量是2的幂，不够时扩容，稳定运行时不分配内存
+ */
+final class Ring<T> implements Iterable<T> {
+	private Object[] items;
+
+	private int head;
+
+	//可见的元素数
+	private int size;
+
+	//暂存的元素数
+	private int staged;
+
+	Ring(int capacity) {
+		this.items = new Object[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int staged() {
+		return staged;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(int i) {
+		return (T) items[(head + i) & (items.length - 1)];
+	}
+
+	/**
+	 * 放入队尾，commit后可见
+	 */
+	public void stage(T item) {
+		if (size + staged == items.length) {
+			grow();
+		}
+		items[(head + size + staged) & (items.length - 1)] = item;
+		staged++;
+	}
+
+	public void commit() {
+		size += staged;
+		staged = 0;
+	}
+
+	public T poll() {
+		if (size == 0) {
+			return null;
+		}
+		T item = get(0);
+		items[head] = null;
+		head = (head + 1) & (items.length - 1);
+		size--;
+		return item;
+	}
+
+	/**
+	 * 取出第i个可见元素，后面的元素（包括暂存的）前移
+	 */
+	public T remove(int i) {
+		T item = get(i);
+		int mask = items.length - 1, total = size + staged;
+		for (int j = i; j < total - 1; j++) {
+			items[(head + j) & mask] = items[(head + j + 1) & mask];
+		}
+		items[(head + total - 1) & mask] = null;
+		size--;
+		return item;
+	}
+
+	/**
+	 * 取出最后一个元素，有暂存的元素时取暂存的
+	 */
+	@SuppressWarnings("unchecked")
+	public T removeLast() {
+		int index = (head + size + staged - 1) & (items.length - 1);
+		T item = (T) items[index];
+		items[index] = null;
+		if (staged > 0) {
+			staged--;
+		} else {
+			size--;
+		}
+		return item;
+	}
+
+	private void grow() {
+		Object[] bigger = new Object[items.length * 2];
+		for (int j = 0; j < size + staged; j++) {
+			bigger[j] = items[(head + j) & (items.length - 1)];
+		}
+		items = bigger;
+		head = 0;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<>() {
+			private int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public T next() {
+				if (i >= size) {
+					throw new NoSuchElementException();
+				}
+				return get(i++);
+			}
+		};
+	}
+}
+
+final class Util {
+
+	/**
+	 * 0扩展到32位
+	 *
+	 * @param s 待扩展的01字符串
+	 * @param i 扩展的位数
+	 * @return 扩展到i位的01字符串
+	 */
+	public static String zeroExtend(String s, int i) {
+		int len = s.length();
+		if (len == 32) {
+			return s;
+		}
+		return "0".repeat(i - len) + s;
+	}
+
+	/**
+	 * 01字符串转32位字，逐位移入
+	 *
+	 * @param binary 不超过32位的01串
+	 * @return 对应的32位字（无符号解释）
+	 */
+	public static int parseWord(CharSequence binary) {
+		int len = binary.length();
+		if (len == 0 || len > 32) {
+			throw new NumberFormatException("For input string: \"" + binary + "\"");
+		}
+		int word = 0;
+		for (int i = 0; i < len; i++) {
+			char c = binary.charAt(i);
+			if ((c & ~1) != '0') {
+				throw new NumberFormatException("For input string: \"" + binary + "\"");
+			}
+			word = (word << 1) | (c & 1);
+		}
+		return word;
+	}
+
+	/**
+	 * 32位字转01字符串，高位补0
+	 */
+	public static String toBinary(int word) {
+		return zeroExtend(Integer.toBinaryString(word), 32);
+	}
+
+	/**
+	 * 低16位补码符号扩展至32位
+	 *
+	 * @param word 指令字
+	 * @return 带符号的整型
+	 */
+	public static int signExtend16(int word) {
+		return (short) word;
+	}
+}
+
+/**
+ * 输入文件加载器
+ * <p>
+ * 支持三种格式，并可以是gzip压缩的：
+ * <p>
+ * 1. BINARY 每行32个'0'/'1'字符（默认格式）
+ * <p>
+ * 2. HEX 每行8个十六进制字符
+ * <p>
+ * 3. RAW 大端序的32位字，无分隔
+ * <p>
+ * 普通文件按窗口内存映射，压缩文件按流读入，都不为每行创建字符串
+ */
+final class Loader {
+	enum Format {BINARY, HEX, RAW}
+
+	/**
+	 * 每次映射的窗口大小
+	 */
+	private static final int WINDOW = 1 << 26;
+
+	/**
+	 * 流式读取时的缓冲区大小
+	 */
+	private static final int STREAM_BUFFER = 1 << 20;
+
+	private static final long ASCII_MASK = 0xFEFEFEFEFEFEFEFEL;
+
+	private static final long ASCII_ZERO = 0x3030303030303030L;
+
+	private static final long BIT_MASK = 0x0101010101010101L;
+
+	/**
+	 * 把8个字节中的最低位依次收集到最高字节
+	 */
+	private static final long GATHER = 0x0102040810204080L;
+
+	public static void load(Path path, IntConsumer consumer) throws IOException {
+		if (isGzip(path)) {
+			try (InputStream in = new GZIPInputStream(Files.newInputStream(path), STREAM_BUFFER)) {
+				load(in, consumer);
+			}
+			return;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size(), position = 0;
+			Format format = null;
+			while (position < size) {
+				long length = Math.min(WINDOW, size - position);
+				boolean eof = position + length == size;
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				if (format == null) {
+					format = detect(buffer);
+				}
+				int consumed = parse(buffer, eof, format, consumer);
+				if (consumed == 0 && !eof) {
+					throw new IOException("Line too long at byte " + position);
+				}
+				position += consumed;
+			}
+		}
+	}
+
+	/**
+	 * 读入全部的字，用于需要随机访问的并行解析
+	 */
+	public static int[] loadAll(Path path) throws IOException {
+		Words words = new Words();
+		load(path, words);
+		return Arrays.copyOf(words.words, words.size);
+	}
+
+	private static class Words implements IntConsumer {
+		int[] words = new int[1024];
+		int size = 0;
+
+		@Override
+		public void accept(int word) {
+			if (size == words.length) {
+				words = Arrays.copyOf(words, size << 1);
+			}
+			words[size++] = word;
+		}
+	}
+
+	/**
+	 * 从流中读取，用于压缩文件
+	 */
+	public static void load(InputStream in, IntConsumer consumer) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER);
+		Format format = null;
+		boolean eof = false;
+		while (!eof) {
+			int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+			if (n < 0) {
+				eof = true;
+			} else {
+				buffer.position(buffer.position() + n);
+				if (buffer.hasRemaining()) continue;
+			}
+			buffer.flip();
+			if (format == null) {
+				format = detect(buffer);
+			}
+			int consumed = parse(buffer, eof, format, consumer);
+			if (consumed == 0 && !eof && buffer.limit() == buffer.capacity()) {
+				throw new IOException("Line too long");
+			}
+			buffer.position(buffer.position() + consumed);
+			buffer.compact();
+		}
+	}
+
+	private static boolean isGzip(Path path) throws IOException {
+		try (InputStream in = Files.newInputStream(path)) {
+			return in.read() == 0x1F && in.read() == 0x8B;
+		}
+	}
+
+	/**
+	 * 根据第一行判断格式
+	 * <p>
+	 * 合法的第一条指令最高两位为01或11，首字节不可能是'0'~'9'，
+	 * 且第9个字节之前不会出现换行符，因此不会和文本格式混淆。十六进制可以带0x前缀（十六进制转储的常见格式）
+	 */
+	static Format detect(ByteBuffer buffer) {
+		int bits = 0, hex = 0, others = 0;
+		boolean prefixed = false;
+		for (int i = buffer.position(), limit = Math.min(buffer.limit(), i + 40); i < limit; i++) {
+			byte b = buffer.get(i);
+			if (b == '\n') break;
+			if (b == '\r' || b == ' ' || b == '\t') continue;
+			if (bits + hex + others == 0 && !prefixed && isHexPrefix(buffer, i, limit)) {
+				prefixed = true;
+				i++;
+				continue;
+			}
+			if ((b & ~1) == '0') bits++;
+			else if (Character.digit(b, 16) >= 0) hex++;
+			else others++;
+		}
+		if (!prefixed && others == 0 && hex == 0 && bits > 8) {
+			return Format.BINARY;
+		}
+		if (others == 0 && bits + hex > 0 && bits + hex <= 8) {
+			return Format.HEX;
+		}
+		return Format.RAW;
+	}
+
+	/**
+	 * 解析缓冲区内所有完整的字
+	 *
+	 * @param buffer   大端序缓冲区
+	 * @param eof      缓冲区末尾是否为文件末尾，是则最后一行不需要换行符
+	 * @param format   文件格式
+	 * @param consumer 接收解析出的32位字
+	 * @return 已经消费的字节数
+	 */
+	static int parse(ByteBuffer buffer, boolean eof, Format format, IntConsumer consumer) throws IOException {
+		return switch (format) {
+			case BINARY -> parseBinary(buffer, eof, consumer);
+			case HEX -> parseHex(buffer, eof, consumer);
+			case RAW -> parseRaw(buffer, eof, consumer);
+		};
+	}
+
+	private static int parseRaw(ByteBuffer buffer, boolean eof, IntConsumer consumer) throws IOException {
+		int start = buffer.position(), limit = buffer.limit(), i = start;
+		for (; i + 4 <= limit; i += 4) {
+			consumer.accept(buffer.getInt(i));
+		}
+		if (eof && i != limit) {
+			throw new IOException("Truncated word at byte " + i);
+		}
+		return i - start;
+	}
 
-			public static String getPostMem(Buffer buffer) {
-				if (buffer != null) {
-					return String.format(POST_MEM, " " + buffer.instruction.toString());
+	private static int parseBinary(ByteBuffer buffer, boolean eof, IntConsumer consumer) throws IOException {
+		int limit = buffer.limit(), i = buffer.position(), start = i;
+		while (i < limit) {
+			int end = i + 32;
+			if (end <= limit && (end == limit ? eof : isLineEnd(buffer.get(end)))) {
+				long v0 = buffer.getLong(i),
+						v1 = buffer.getLong(i + 8),
+						v2 = buffer.getLong(i + 16),
+						v3 = buffer.getLong(i + 24);
+				if (((v0 & ASCII_MASK) == ASCII_ZERO) & ((v1 & ASCII_MASK) == ASCII_ZERO)
+						& ((v2 & ASCII_MASK) == ASCII_ZERO) & ((v3 & ASCII_MASK) == ASCII_ZERO)) {
+					consumer.accept(gather(v0) << 24 | gather(v1) << 16 | gather(v2) << 8 | gather(v3));
+					i = skipLineEnd(buffer, end, limit);
+					start = i;
+					continue;
 				}
-				return String.format(POST_MEM, "");
 			}
-
-			public static String getPostAlu2(Buffer buffer) {
-				if (buffer != null) {
-					return String.format(POST_ALU2, " " + buffer.instruction.toString());
+			//不是标准的32位行，逐字节解析
+			int word = 0, bits = 0;
+			for (; i < limit && buffer.get(i) != '\n'; i++) {
+				byte b = buffer.get(i);
+				if ((b & ~1) == '0' && bits < 32) {
+					word = (word << 1) | (b & 1);
+					bits++;
+				} else if (!isBlank(b)) {
+					throw new IOException("Invalid binary character '" + (char) b + "' at byte " + i);
 				}
-				return String.format(POST_ALU2, "");
 			}
-
-			public static String getRegisters(Integer[] registers) {
-				return String.format(REGISTERS, (Object[]) registers);
+			if (i == limit && !eof) {
+				//最后一行不完整，留到下一个窗口
+				break;
 			}
-
-			public static String getData(Integer[] data, int dataAddr) {
-				StringBuilder builder = new StringBuilder();
-				for (int i = 0; i < data.length; i += 8) {
-					builder.append(String.format(DATA, dataAddr + i * 4, data[i], data[i + 1], data[i + 2], data[i + 3], data[i + 4], data[i + 5], data[i + 6], data[i + 7]));
-				}
-				return builder.toString();
+			if (bits > 0) {
+				consumer.accept(word);
 			}
-
-
+			i = Math.min(i + 1, limit);
+			start = i;
 		}
+		return start - buffer.position();
 	}
 
-	//逻辑左移：
-	//算术右移：正数补0，负数补1
-	//逻辑移位:移动符号位
-	/// >>> :左边补0 逻辑右移
-	// >> :正数补0 负数补0 算术右移
-	public static void main(String[] args) {
-		MIPSsim simulator = new MIPSsim(256);
-		Path sampleInput = Paths.get(args[0]);
-		try {
-			List<String> sample = Files.readAllLines(sampleInput, Charset.defaultCharset());
-			String disassembly = simulator.disassemble(sample);
-			//Path assembly = Paths.get("./disassembly.txt");
-			//Files.writeString(assembly, disassembly);
-			String simulation = simulator.simulate();
-			Path simulated = Paths.get("./simulation.txt");
-			Files.writeString(simulated, simulation);
-		} catch (IOException e) {
-			e.printStackTrace();
+	private static int parseHex(ByteBuffer buffer, boolean eof, IntConsumer consumer) throws IOException {
+		int limit = buffer.limit(), i = buffer.position(), start = i;
+		while (i < limit) {
+			int word = 0, digits = 0;
+			boolean prefixed = false;
+			for (; i < limit && buffer.get(i) != '\n'; i++) {
+				byte b = buffer.get(i);
+				int digit = Character.digit(b, 16);
+				if (digits == 0 && !prefixed && isHexPrefix(buffer, i, limit)) {
+					//跳过0x
+					prefixed = true;
+					i++;
+				} else if (digit >= 0 && digits < 8) {
+					word = (word << 4) | digit;
+					digits++;
+				} else if (!isBlank(b)) {
+					throw new IOException("Invalid hex character '" + (char) b + "' at byte " + i);
+				}
+			}
+			if (i == limit && !eof) {
+				break;
+			}
+			if (digits > 0) {
+				consumer.accept(word);
+			}
+			i = Math.min(i + 1, limit);
+			start = i;
 		}
-		//Deque<Integer> deque = new ArrayDeque<>(Arrays.asList(1, 2, 3, 4, 5));
-		//for (Integer integer : deque) {
-		//	System.out.println(integer);
-		//}
+		return start - buffer.position();
 	}
-}
-
-/**
- * 指令
- */
-class Instruction {
-	public static final String JUMP = "%s #%s"; // op value1
-	public static final String ONE_REGISTER_OFFSET = "%s R%s, #%s";
-	public static final String TWO_REGISTER_OFFSET = "%s R%s, R%s, #%s";
-	public static final String LOAD_SAVE_WORD = "%s R%s, %s(R%s)";
-	public static final String CAL_IMMEDIATE = "%s R%s, R%s, #%s";
-	public static final String THREE_REGISTER = "%s R%s, R%s, R%s";
-
-	private Integer category;
-	//地址
-	private Integer address;
 
-	private String operation;
+	/**
+	 * @return i处是否是0x或0X
+	 */
+	private static boolean isHexPrefix(ByteBuffer buffer, int i, int limit) {
+		return buffer.get(i) == '0' && i + 1 < limit && (buffer.get(i + 1) | 0x20) == 'x';
+	}
 
-	private Integer rs;
+	private static int gather(long v) {
+		return (int) (((v & BIT_MASK) * GATHER) >>> 56);
+	}
 
-	private Integer rt;
+	private static boolean isLineEnd(byte b) {
+		return b == '\n' || b == '\r';
+	}
 
-	private Integer rd;
+	private static boolean isBlank(byte b) {
+		return b == '\r' || b == ' ' || b == '\t';
+	}
 
-	private Integer shift;
+	private static int skipLineEnd(ByteBuffer buffer, int i, int limit) {
+		if (i < limit && buffer.get(i) == '\r') i++;
+		if (i < limit && buffer.get(i) == '\n') i++;
+		return i;
+	}
+}
 
-	private Integer func;
+/**
+ * 带缓冲的通道输出
+ * <p>
+ * 输出的内容都是ASCII，直接按字节写入缓冲区，不经过String.format和编码器
+ */
+final class ChannelWriter implements Appendable, Flushable, Closeable {
+	private static final int BUFFER_SIZE = 1 << 16;
 
-	private Integer value;
+	private final WritableByteChannel channel;
 
-	private Integer target;
+	private final ByteBuffer buffer;
 
-	private String instruction;
+	/**
+	 * 整数转十进制的临时空间
+	 */
+	private final byte[] digits = new byte[11];
 
-	public Instruction(Integer address) {
-		this.address = address;
+	public ChannelWriter(WritableByteChannel channel) {
+		this(channel, ByteBuffer.allocateDirect(BUFFER_SIZE));
 	}
 
-	public Integer getCategory() {
-		return category;
+	/**
+	 * 使用调用方提供的缓冲区，批量写很多文件时每个线程复用一个
+	 */
+	public ChannelWriter(WritableByteChannel channel, ByteBuffer buffer) {
+		this.channel = channel;
+		this.buffer = buffer;
+		buffer.clear();
 	}
 
-	public void setCategory(Integer category) {
-		this.category = category;
+	public static ChannelWriter open(Path path) throws IOException {
+		return new ChannelWriter(FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
 	}
 
-	public Integer getAddress() {
-		return address;
+	public static ChannelWriter open(Path path, ByteBuffer buffer) throws IOException {
+		return new ChannelWriter(FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), buffer);
 	}
 
-	public String getBinAddress() {
-		return Util.zeroExtend(Integer.toBinaryString(address), 32);
+	static ByteBuffer allocate() {
+		return ByteBuffer.allocateDirect(BUFFER_SIZE);
 	}
 
-	public void setAddress(Integer address) {
-		this.address = address;
+	/**
+	 * 丢弃offset之后的内容，从offset处续写
+	 */
+	public static ChannelWriter open(Path path, long offset) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (channel.size() < offset) {
+			channel.close();
+			throw new IOException("Output is shorter than the checkpoint: " + path);
+		}
+		channel.truncate(offset);
+		channel.position(offset);
+		return new ChannelWriter(channel);
 	}
 
-	public String getOperation() {
-		return operation;
+	@Override
+	public ChannelWriter append(CharSequence csq) {
+		return append(csq, 0, csq.length());
 	}
 
-	public void setOperation(String operation) {
-		this.operation = operation;
+	@Override
+	public ChannelWriter append(CharSequence csq, int start, int end) {
+		for (int i = start; i < end; i++) {
+			append(csq.charAt(i));
+		}
+		return this;
 	}
 
-	public Integer getRs() {
-		return rs;
+	@Override
+	public ChannelWriter append(char c) {
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+		return this;
 	}
 
-	public Instruction setRs(Integer rs) {
-		this.rs = rs;
+	/**
+	 * 十进制输出，不创建字符串
+	 */
+	public ChannelWriter appendDecimal(int value) {
+		if (value == Integer.MIN_VALUE) {
+			return append("-2147483648");
+		}
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		if (buffer.remaining() < digits.length - i) {
+			drain();
+		}
+		buffer.put(digits, i, digits.length - i);
 		return this;
 	}
 
-	public Instruction setRs(String rs) {
-		this.rs = Integer.parseInt(rs, 2);
+	/**
+	 * 32位01串输出
+	 */
+	public ChannelWriter appendBinary(int word) {
+		if (buffer.remaining() < 32) {
+			drain();
+		}
+		for (int i = 31; i >= 0; i--) {
+			buffer.put((byte) ('0' + ((word >>> i) & 1)));
+		}
 		return this;
 	}
 
-	public Integer getRt() {
-		return rt;
+	private void drain() {
+		try {
+			flush();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
-	public void setRt(Integer rt) {
-		this.rt = rt;
+	@Override
+	public void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
 	}
 
-	public Instruction setRt(String rt) {
-		this.rt = Integer.parseInt(rt, 2);
-		return this;
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			channel.close();
+		}
 	}
+}
 
-	public Integer getRd() {
-		return rd;
-	}
+/**
+ * 编译后的基本块
+ */
+interface Block {
+	/**
+	 * 执行整个基本块
+	 *
+	 * @param register 寄存器
+	 * @param state    数据存储器
+	 * @return 下一条指令的地址；以BREAK结束的块返回BREAK的下一条地址，是否停机由调用者按块的最后一条指令判断
+	 */
+	int execute(int[] register, State state);
+}
 
-	public void setRd(Integer rd) {
-		this.rd = rd;
-	}
+/**
+ * 基本块编译器
+ * <p>
+ * 从入口开始顺序取指，到J、JR、BEQ、BLTZ、BGTZ、BREAK（含）为止，生成一个实现{@link Block}的隐藏类。
+ * 块内用到的寄存器在入口读入局部变量，出口统一写回，让HotSpot像普通Java代码一样优化。
+ * <p>
+ * 字节码用49版本（Java 5）的格式，不需要StackMapTable
+ */
+final class BlockCompiler {
+	/**
+	 * 基本块进入多少次后编译
+	 */
+	static final int THRESHOLD = 50;
 
-	public void setRd(String rd) {
-		this.rd = Integer.parseInt(rd, 2);
-	}
+	/**
+	 * 单个基本块最多包含的指令数
+	 */
+	static final int MAX_LENGTH = 256;
 
-	public Integer getShift() {
-		return shift;
-	}
+	private static final int REGISTER_SLOT = 1, STATE_SLOT = 2, LOCAL_BASE = 3;
 
-	public void setShift(Integer shift) {
-		this.shift = shift;
-	}
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
 
-	public void setShift(String shift) {
-		this.shift = Integer.parseInt(shift, 2);
-	}
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
 
-	public Integer getFunc() {
-		return func;
-	}
+	private final Map<String, Integer> constants = new HashMap<>();
 
-	public void setFunc(Integer func) {
-		this.func = func;
-	}
+	private int poolCount = 1;
 
-	public Integer getValue() {
-		return value;
-	}
+	private ByteArrayOutputStream code;
 
-	public Integer getImmediate() {
-		return value;
+	private BlockCompiler() {
 	}
 
-	public Integer getOffset() {
-		return getValue();
+	static boolean endsBlock(Opcode opcode, int length) {
+		return switch (opcode) {
+			case J, JR, BEQ, BLTZ, BGTZ, BREAK -> true;
+			default -> length >= MAX_LENGTH;
+		};
 	}
 
-	public void setValue(Integer value) {
-		this.value = value;
+	/**
+	 * @return 以index为入口的基本块包含的指令数
+	 */
+	static int length(List<Instruction> instructions, int index) {
+		int length = 0;
+		while (index + length < instructions.size()) {
+			if (endsBlock(instructions.get(index + length).getOpcode(), ++length)) {
+				break;
+			}
+		}
+		return length;
 	}
 
-	public void setValue(String value) {
-		this.value = Integer.parseUnsignedInt(value, 2);
+	static Block compile(List<Instruction> instructions, int index) {
+		byte[] bytes = new BlockCompiler().generate(instructions, index, length(instructions, index));
+		try {
+			MethodHandles.Lookup lookup = LOOKUP.defineHiddenClass(bytes, true);
+			return (Block) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable e) {
+			throw new IllegalStateException("Cannot compile block at " + instructions.get(index).getAddress(), e);
+		}
 	}
 
-	public Integer getTarget() {
-		return target;
+	private byte[] generate(List<Instruction> instructions, int index, int length) {
+		int thisClass = classRef("Block$" + instructions.get(index).getAddress()),
+				superClass = classRef("java/lang/Object"),
+				blockInterface = classRef("Block"),
+				objectInit = methodRef("java/lang/Object", "<init>", "()V"),
+				load = methodRef("State", "load", "(I)I"),
+				store = methodRef("State", "store", "(II)V"),
+				codeName = utf8("Code");
+		byte[] init = {0x2A, (byte) 0xB7, (byte) (objectInit >> 8), (byte) objectInit, (byte) 0xB1};
+		byte[] execute = body(instructions, index, length, load, store);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		DataOutputStream file = new DataOutputStream(out);
+		try {
+			int initName = utf8("<init>"), initType = utf8("()V"),
+					executeName = utf8("execute"), executeType = utf8("([ILState;)I");
+			file.writeInt(0xCAFEBABE);
+			file.writeShort(0);
+			file.writeShort(49);
+			file.writeShort(poolCount);
+			pool.writeTo(file);
+			file.writeShort(0x0031);
+			file.writeShort(thisClass);
+			file.writeShort(superClass);
+			file.writeShort(1);
+			file.writeShort(blockInterface);
+			file.writeShort(0);
+			file.writeShort(2);
+			method(file, initName, initType, codeName, 1, 1, init);
+			method(file, executeName, executeType, codeName, 6, LOCAL_BASE + 32, execute);
+			file.writeShort(0);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.toByteArray();
 	}
 
-	public void setTarget(Integer target) {
-		this.target = target;
+	private static void method(DataOutputStream file, int name, int type, int codeName, int stack, int locals, byte[] code) throws IOException {
+		file.writeShort(0x0001);
+		file.writeShort(name);
+		file.writeShort(type);
+		file.writeShort(1);
+		file.writeShort(codeName);
+		file.writeInt(12 + code.length);
+		file.writeShort(stack);
+		file.writeShort(locals);
+		file.writeInt(code.length);
+		file.write(code);
+		file.writeShort(0);
+		file.writeShort(0);
 	}
 
-	public String getInstruction() {
-		return instruction;
+	/**
+	 * 生成execute方法体
+	 */
+	private byte[] body(List<Instruction> instructions, int index, int length, int load, int store) {
+		code = new ByteArrayOutputStream();
+		int used = 0, written = 0;
+		for (int i = index; i < index + length; i++) {
+			Instruction instruction = instructions.get(i);
+			used |= mask(instruction.getRs()) | mask(instruction.getRt()) | mask(instruction.getRd());
+		}
+		for (int r = 0; r < 32; r++) {
+			if ((used & (1 << r)) != 0) {
+				code(0x2B); //aload_1
+				push(r);
+				code(0x2E); //iaload
+				code(0x36, LOCAL_BASE + r); //istore
+			}
+		}
+		for (int i = index; i < index + length; i++) {
+			Instruction instruction = instructions.get(i);
+			Opcode opcode = instruction.getOpcode();
+			int imm = instruction.getImmediate();
+			switch (opcode) {
+				case ADD, SUB, MUL, AND, OR, XOR, NOR, SLT -> {
+					iload(instruction.getRs());
+					iload(instruction.getRt());
+					arithmetic(opcode);
+					written |= istore(instruction.getRd());
+				}
+				case ADDI, ANDI, ORI, XORI -> {
+					iload(instruction.getRs());
+					push(imm);
+					arithmetic(opcode);
+					written |= istore(instruction.getRt());
+				}
+				case SLL, SRL, SRA -> {
+					iload(instruction.getRt());
+					push(imm);
+					arithmetic(opcode);
+					written |= istore(instruction.getRd());
+				}
+				case LW -> {
+					code(0x2C); //aload_2
+					iload(instruction.getRs());
+					push(imm);
+					code(0x60); //iadd
+					invoke(load);
+					written |= istore(instruction.getRt());
+				}
+				case SW -> {
+					code(0x2C); //aload_2
+					iload(instruction.getRs());
+					push(imm);
+					code(0x60); //iadd
+					iload(instruction.getRt());
+					invoke(store);
+				}
+				case NOP -> {
+				}
+				case J -> {
+					writeBack(written);
+					exit(instruction.getTarget());
+					return code.toByteArray();
+				}
+				case JR -> {
+					writeBack(written);
+					iload(instruction.getRs());
+					code(0xAC); //ireturn
+					return code.toByteArray();
+				}
+				case BREAK -> {
+					writeBack(written);
+					exit(instruction.getAddress() + 4);
+					return code.toByteArray();
+				}
+				case BEQ, BLTZ, BGTZ -> {
+					writeBack(written);
+					iload(instruction.getRs());
+					int branch;
+					if (opcode == Opcode.BEQ) {
+						iload(instruction.getRt());
+						branch = jump(0xA0); //if_icmpne
+					} else {
+						branch = jump(opcode == Opcode.BLTZ ? 0x9C : 0x9E); //ifge, ifle
+					}
+					exit(instruction.getTarget());
+					patch(branch);
+					exit(instruction.getAddress() + 4);
+					return code.toByteArray();
+				}
+			}
+		}
+		//达到长度上限，顺序执行下一块
+		writeBack(written);
+		exit(instructions.get(index + length - 1).getAddress() + 4);
+		return code.toByteArray();
 	}
 
-	public void setInstruction(String instrction) {
-		this.instruction = instrction;
+	private void arithmetic(Opcode opcode) {
+		switch (opcode) {
+			case ADD, ADDI -> code(0x60); //iadd
+			case SUB -> code(0x64); //isub
+			case MUL -> code(0x68); //imul
+			case AND, ANDI -> code(0x7E); //iand
+			case OR, ORI -> code(0x80); //ior
+			case XOR, XORI -> code(0x82); //ixor
+			case NOR -> {
+				code(0x80); //ior
+				code(0x02); //iconst_m1
+				code(0x82); //ixor
+			}
+			case SLT -> {
+				int less = jump(0xA1); //if_icmplt
+				code(0x03); //iconst_0
+				int end = jump(0xA7); //goto
+				patch(less);
+				code(0x04); //iconst_1
+				patch(end);
+			}
+			case SLL -> code(0x78); //ishl
+			case SRL -> code(0x7C); //iushr
+			case SRA -> code(0x7A); //ishr
+		}
 	}
 
-	public void setInstruction(String instrction, Object... argv) {
-		this.instruction = String.format(instrction, argv);
+	private static int mask(Integer register) {
+		return register == null ? 0 : 1 << register;
 	}
 
-	@Override
-	public String toString() {
-		return "[" + instruction + "]";
+	private void iload(int register) {
+		code(0x15, LOCAL_BASE + register);
 	}
-}
-
-final class Category {
-	public static Map<String, Integer> categorySet;
-	public static String[] opType1;
-	public static String[] opType2;
-	public static Map<String, Operation> operationMap;
-
-	static {
-		categorySet = new HashMap<>();
-		opType1 = new String[]{"J", "JR", "BEQ", "BLTZ", "BGTZ", "BREAK", "SW", "LW", "SLL", "SRL", "SRA", "NOP"};
-		opType2 = new String[]{"ADD", "SUB", "MUL", "AND", "OR", "XOR", "NOR", "SLT", "ADDI", "ANDI", "ORI", "XORI"};
-		operationMap = new HashMap<>();
-		categorySet.put("01", 1);
-		categorySet.put("11", 2);
-
-		{
-			operationMap.put("ADD", Integer::sum);
-			operationMap.put("SUB", (int x, int y) -> x - y);
-			operationMap.put("MUL", (int x, int y) -> x * y);
-			operationMap.put("AND", (int x, int y) -> x & y);
-			operationMap.put("OR", (int x, int y) -> x | y);
-			operationMap.put("XOR", (int x, int y) -> x ^ y);
-			operationMap.put("NOR", (int x, int y) -> ~(x | y));
-			operationMap.put("SLT", (int rs, int rt) -> {
-				return rs < rt ? 1 : 0;
-			});
-			operationMap.put("ADDI", (int x, int immediateValue)
-					-> x + Integer.parseUnsignedInt(Util.signedExtend(Util.int16toString(immediateValue), 32), 2));
-			operationMap.put("ANDI", (int x, int immediateValue)
-					-> x & Integer.parseUnsignedInt(Util.zeroExtend(Util.int16toString(immediateValue), 32), 2));
-			operationMap.put("ORI", (int x, int immediateValue)
-					-> x | Integer.parseUnsignedInt(Util.zeroExtend(Util.int16toString(immediateValue), 32), 2));
-			operationMap.put("XORI", (int x, int immediateValue)
-					-> x ^ Integer.parseUnsignedInt(Util.zeroExtend(Util.int16toString(immediateValue), 32), 2));
-			operationMap.put("SLL", (int rt, int sa) -> rt << sa);//逻辑左移
-			operationMap.put("SRL", (int rt, int sa) -> rt >>> sa);//逻辑右移
-			operationMap.put("SRA", (int rt, int sa) -> rt >> sa);//算术右移
 
-			operationMap.put("LW", (int rs, int offset) -> rs + Integer.parseUnsignedInt(Util.signedExtend(Util.int16toString(offset), 32), 2));
+	private int istore(int register) {
+		code(0x36, LOCAL_BASE + register);
+		return 1 << register;
+	}
 
-			operationMap.put("SW", (int rs, int offset) -> rs + Integer.parseUnsignedInt(Util.signedExtend(Util.int16toString(offset), 32), 2));
+	private void writeBack(int written) {
+		for (int r = 0; r < 32; r++) {
+			if ((written & (1 << r)) != 0) {
+				code(0x2B); //aload_1
+				push(r);
+				code(0x15, LOCAL_BASE + r); //iload
+				code(0x4F); //iastore
+			}
 		}
-
-		/*
-		 instr_index<<2            26             J target
-		 rs padding hint                          JR rs
-		 rs rt offset             5 5 16          BEQ rs, rt, offset
-		 rs 00000 offset          5 5 16          BLTZ rs, offset
-		 rs 00000 offset          5 5 16          BGTZ rs, offset
-		 BREAK
-		 rs rt offset           5 5 16          SW rt, offset(rs)
-		 rs rt offset           5 5 16          LW rt, offset(rs)
-		 00000 rt rd sa           5 5 5 5       SLL rd, rt, sa
-		 00000 rt rd sa           5 5 5 5       SRL rd, rt, sa
-		 00000 rt rd sa           5 5 5 5       SRA rd, rt, sa
-		                                          NOP
-		 rs rt rd         5 5 5        ADD rd, rs, rt
-		 rs rt rd         5 5 5        SUB rd, rs, rt
-		 rs rt rd         5 5 5        MUL rd, rs, rt
-		 rs rt rd         5 5 5        AND rd, rs, rt
-		 rs rt rd         5 5 5        OR rd, rs, rt
-		 rs rt rd         5 5 5        XOR rd, rs, rt
-		 rs rt rd         5 5 5        NOR rd, rs, rt
-		 rs rt rd         5 5 5        SLT rd, rs, rt
-
-		 rs rt immediate          5 5 16          ADDI rt, rs, immediate
-		 rs rt immediate          5 5 16          ANDI rt, rs, immediate
-		 rs rt immediate          5 5 16          ORI rt, rs, immediate
-		 rs rt immediate          5 5 16          XORI rt, rs, immediate*/
 	}
 
-	public static Integer getCategory(String category) {
-		return categorySet.get(category);
+	private void exit(int pc) {
+		push(pc);
+		code(0xAC); //ireturn
 	}
 
-	public static String getOperation(Integer type, Integer opCode) {
-		if (type == 1) {
-			return opType1[opCode];
-		} else return opType2[opCode];
+	private void invoke(int method) {
+		code(0xB6); //invokevirtual
+		code(method >> 8, method);
 	}
-}
-
-interface Operation {
-	int operation(int x, int y);
-}
-
-final class Util {
 
-	/**
-	 * 0扩展到32位
-	 *
-	 * @param s 待扩展的01字符串
-	 * @param i 扩展的位数
-	 * @return 扩展到i位的01字符串
-	 */
-	public static String zeroExtend(String s, int i) {
-		int len = s.length();
-		if (len == 32) {
-			return s;
+	private void push(int value) {
+		if (value >= -1 && value <= 5) {
+			code(0x03 + value); //iconst_<n>
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code(0x10, value); //bipush
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			code(0x11); //sipush
+			code(value >> 8, value);
+		} else {
+			int constant = integer(value);
+			code(0x13); //ldc_w
+			code(constant >> 8, constant);
 		}
-		return "0".repeat(i - len) + s;
 	}
 
 	/**
-	 * 符号扩展成32位
-	 *
-	 * @param s 补码表示的二进制01串
+	 * @return 待回填的跳转指令位置
 	 */
-	public static String signedExtend(String s, int size) {
-		int len = s.length(),
-				flag = s.charAt(0) == '1' ? -1 : 1;
-		if (len == 32) return "";
-		StringBuilder builder = new StringBuilder();
-		if (flag == 1) {
-			s = "0".repeat(size - len) + s;
-		} else {
-			//if (s.substring(1).equals("0".repeat(len - 1))) {
-			//	return "1" + "0".repeat(31);
-			//}
-			s = "1".repeat(32 - len) + s;
-		}
-		return s;
+	private int jump(int opcode) {
+		int at = code.size();
+		code(opcode);
+		code(0, 0);
+		return at;
 	}
 
 	/**
-	 * 将二进制补码转为十进制，并返回带符号的数字
-	 *
-	 * @param complementBinary 二进制01串
-	 * @return 带符号的原码
+	 * 把跳转指令的目标回填为当前位置
 	 */
-	public static Integer complement2trueFrom(String complementBinary, int length) {
-		int flag = complementBinary.charAt(0) == '1' ? -1 : 1;
-		String trueForm = complementBinary;
-		if (flag == -1) {
-			//负数的补码转源码：
-			char[] chars = complementBinary.toCharArray();
-			for (int i = 1, len = chars.length; i < len; i++) {
-				chars[i] = chars[i] == '1' ? '0' : '1';
-			}
-			trueForm = String.valueOf(chars);
-		}
-		//System.out.println(trueForm);
+	private void patch(int at) {
+		byte[] bytes = code.toByteArray();
+		int offset = bytes.length - at;
+		bytes[at + 1] = (byte) (offset >> 8);
+		bytes[at + 2] = (byte) offset;
+		code.reset();
+		code.write(bytes, 0, bytes.length);
+	}
 
-		int value = Integer.parseInt(trueForm.substring(1), 2);
-		if (flag == -1) {
-			value = flag * ((value + 1) & 0x7FFF);
-			if (value == 0)
-				value = Integer.MIN_VALUE;
+	private void code(int... bytes) {
+		for (int b : bytes) {
+			code.write(b);
 		}
-		return value;
+	}
 
+	private int utf8(String value) {
+		return constant("U" + value, out -> {
+			out.writeByte(1);
+			out.writeUTF(value);
+		});
 	}
 
-	/**
-	 * 16位二进制补码转整型
-	 *
-	 * @param binary 16位二进制补码
-	 * @return 整型
-	 */
-	public static Integer complement16toInteger(String binary) {
-		int len = binary.length();
-		int flag = binary.charAt(0) == '1' ? -1 : 0;
-		if (flag == -1) {
-			char[] bits = binary.toCharArray();
-			int shift = 1, value = 0;
-			for (int i = bits.length - 1; i >= 1; i--) {
-				if (bits[i] == '1') {
-					value += shift;
-				}
-				shift <<= 1;
-			}
-			if (value == 0) {
-				return -1 * (1 << (len - 1));
-			}
-			value = value + (flag * shift);
-			return value;
-		} else {
-			return Integer.parseInt(binary, 2);
-		}
+	private int classRef(String name) {
+		int utf8 = utf8(name);
+		return constant("C" + name, out -> {
+			out.writeByte(7);
+			out.writeShort(utf8);
+		});
 	}
 
-	/**
-	 * -32768 ~ 32767 转16位二进制字符串
-	 *
-	 * @param value value
-	 * @return 16位二进制字符串
-	 */
-	public static String int16toString(Integer value) {
-		if (value == -32768) {
-			return "1000000000000000";
-		}
-		if (value > 0) {
-			String substring = Integer.toBinaryString(value);
-			return "0".repeat(16 - substring.length()) + substring;
+	private int methodRef(String owner, String name, String type) {
+		int clazz = classRef(owner), nameUtf8 = utf8(name), typeUtf8 = utf8(type);
+		int nameAndType = constant("N" + name + type, out -> {
+			out.writeByte(12);
+			out.writeShort(nameUtf8);
+			out.writeShort(typeUtf8);
+		});
+		return constant("M" + owner + "." + name + type, out -> {
+			out.writeByte(10);
+			out.writeShort(clazz);
+			out.writeShort(nameAndType);
+		});
+	}
 
-		} else if (value == 0) return "0".repeat(16);
-		else {
-			return Integer.toBinaryString(value).substring(16);
-		}
+	private int integer(int value) {
+		return constant("I" + value, out -> {
+			out.writeByte(3);
+			out.writeInt(value);
+		});
 	}
 
-	public static String int2String(Integer value, Integer bits) {
-		String s = Integer.toBinaryString(value);
-		s = "0".repeat(32 - s.length()) + s;
-		return s.substring(32 - bits);
+	private interface Entry {
+		void write(DataOutputStream out) throws IOException;
 	}
-}
 
+	private int constant(String key, Entry entry) {
+		Integer index = constants.get(key);
+		if (index == null) {
+			try {
+				entry.write(new DataOutputStream(pool));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			index = poolCount++;
+			constants.put(key, index);
+		}
+		return index;
+	}
+}
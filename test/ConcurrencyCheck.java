@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 并发自检：每个程序先串行模拟一次，再用多个线程同时模拟rounds遍，与串行的输出比较
+ * <p>
+ * 用法：java -cp 模拟器和本类的classpath ConcurrencyCheck 轮数 程序...
+ */
+public class ConcurrencyCheck {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("usage: ConcurrencyCheck <rounds> <program>...");
+			System.exit(2);
+		}
+		int rounds = Integer.parseInt(args[0]);
+		List<Path> programs = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			programs.add(Paths.get(args[i]));
+		}
+		int mismatches = check(programs, rounds);
+		System.out.printf("concurrent check: %d runs, %d mismatches%n", rounds * programs.size(), mismatches);
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return 输出不一致的次数
+	 */
+	static int check(List<Path> programs, int rounds) throws IOException, InterruptedException {
+		List<String> expected = new ArrayList<>();
+		for (Path program : programs) {
+			expected.add(simulate(program));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int round = 0; round < rounds; round++) {
+				for (Path program : programs) {
+					results.add(pool.submit(() -> simulate(program)));
+				}
+			}
+			int mismatches = 0;
+			for (int i = 0; i < results.size(); i++) {
+				try {
+					if (!results.get(i).get().equals(expected.get(i % programs.size()))) {
+						mismatches++;
+					}
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					mismatches++;
+				}
+			}
+			return mismatches;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static String simulate(Path program) throws IOException {
+		MIPSsim simulator = new MIPSsim(256);
+		simulator.disassemble(program);
+		return simulator.simulate();
+	}
+}
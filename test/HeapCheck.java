@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 堆上限自检：在-Xmx为heap的子进程中输出过滤后的增量轨迹（功能模拟器和流水线，-last和-every），
+ * 过滤掉的周期不能让记录的改写无限增长，堆占用应与不输出轨迹时相同
+ * <p>
+ * 用法：java -cp 模拟器和本类的classpath HeapCheck 32m 程序...
+ */
+public class HeapCheck {
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("usage: HeapCheck <heap> <program>...");
+			System.exit(2);
+		}
+		List<Path> programs = new ArrayList<>();
+		for (int i = 1; i < args.length; i++) {
+			programs.add(Paths.get(args[i]));
+		}
+		int failed = check(programs, args[0]);
+		System.out.printf("heap check (-Xmx%s): %d runs, %d failed%n", args[0], 4 * programs.size(), failed);
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param heap 例如32m
+	 * @return 失败（非0退出，一般是OutOfMemoryError）的运行数
+	 */
+	static int check(List<Path> programs, String heap) throws IOException, InterruptedException {
+		String java = ProcessHandle.current().info().command().orElse("java");
+		Path directory = Files.createTempDirectory("heapcheck");
+		String[][] filters = {{"-last"}, {"-every", "1000"}};
+		int failed = 0;
+		try {
+			for (Path program : programs) {
+				for (boolean functional : new boolean[]{true, false}) {
+					for (String[] filter : filters) {
+						List<String> command = new ArrayList<>(List.of(java, "-Xmx" + heap,
+								"-cp", System.getProperty("java.class.path"), MIPSsim.class.getName(), "-t"));
+						if (functional) {
+							command.add("-f");
+						}
+						command.addAll(Arrays.asList(filter));
+						command.add(program.toAbsolutePath().toString());
+						Process process = new ProcessBuilder(command).directory(directory.toFile())
+								.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+								.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+						if (process.waitFor() != 0) {
+							System.err.println("heap check failed: " + String.join(" ", command));
+							failed++;
+						}
+					}
+				}
+			}
+		} finally {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+				for (Path file : files) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+		}
+		return failed;
+	}
+}